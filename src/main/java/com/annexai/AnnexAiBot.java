@@ -1,13 +1,14 @@
 package com.annexai;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerPreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.methods.GetFile;
 import org.telegram.telegrambots.meta.api.methods.send.SendInvoice;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
@@ -15,6 +16,9 @@ import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.*;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaVideo;
 import org.telegram.telegrambots.meta.api.objects.payments.LabeledPrice;
 import org.telegram.telegrambots.meta.api.objects.payments.OrderInfo;
 import org.telegram.telegrambots.meta.api.objects.payments.PreCheckoutQuery;
@@ -26,27 +30,34 @@ import org.telegram.telegrambots.meta.api.objects.InputFile;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.http.client.config.RequestConfig;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AnnexAiBot extends TelegramLongPollingBot {
     private static final String STATE_WAIT_PROMO = "WAIT_PROMO";
@@ -69,18 +80,34 @@ public class AnnexAiBot extends TelegramLongPollingBot {
     private static final String MODEL_SORA_2_IMAGE = "sora-2-image-to-video";
     private static final String MODEL_VEO_3_1 = "veo-3.1";
     private static final int GEMINI_HISTORY_LIMIT = 12;
+    private static final long POLL_TIMEOUT_MILLIS = 600_000;
+    private static final String JOB_KIND_TASK = "task";
+    private static final String JOB_KIND_VEO = "veo";
+    private static final int KLING_MAX_ATTEMPTS = 3;
+    private static final int REFERENCE_UPLOAD_PARALLELISM = 8;
+    private static final int TELEGRAM_SENDER_THREADS = 8;
+    private static final int TELEGRAM_UPDATES_TIMEOUT_SECONDS = 50;
+    private static final long TELEGRAM_PHOTO_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int TELEGRAM_ALBUM_MAX_ITEMS = 10;
+    private static final long KIE_UPLOAD_REUSE_MILLIS = TimeUnit.HOURS.toMillis(60);
 
     private final Config config;
     private final Database db;
     private final KieClient kieClient;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final OkHttpClient httpClient = new OkHttpClient.Builder()
-            .connectTimeout(30, TimeUnit.SECONDS)
-            .readTimeout(90, TimeUnit.SECONDS)
-            .writeTimeout(30, TimeUnit.SECONDS)
-            .retryOnConnectionFailure(true)
-            .build();
+    private final ExecutorService executor;
+    private final GenerationLimiter generationLimiter;
+    private final GenerationQueue generationQueue;
+    private final TaskCompletionScheduler completionScheduler = new TaskCompletionScheduler(4);
+    private final PollingPolicy pollingPolicy;
+    private final ObjectMapper mapper = Json.MAPPER;
+    private final HttpClients httpClients;
+    private final OkHttpClient resultsClient;
+    private final OkHttpClient telegramFilesClient;
+    private final TelegramFileCache telegramFiles = new TelegramFileCache();
+    private final ImageCompressor imageCompressor = new ImageCompressor(
+            TELEGRAM_PHOTO_MAX_BYTES, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private final Semaphore referenceUploads = new Semaphore(REFERENCE_UPLOAD_PARALLELISM);
+    private final Map<String, CompletableFuture<String>> referenceUploadsInFlight = new ConcurrentHashMap<>();
     private final Set<Long> activeGenerations = ConcurrentHashMap.newKeySet();
     private final Map<Long, String> lastAlbumNotice = new ConcurrentHashMap<>();
     private final Set<Long> modelSelectedThisSession = ConcurrentHashMap.newKeySet();
@@ -92,10 +119,95 @@ public class AnnexAiBot extends TelegramLongPollingBot {
             "1m", new PurchaseOption(1_000_000, 999)
     );
 
-    public AnnexAiBot(Config config, Database db, KieClient kieClient) {
+    public AnnexAiBot(Config config, Database db, KieClient kieClient, HttpClients httpClients) {
+        super(botOptions(), config.botToken);
         this.config = config;
         this.db = db;
         this.kieClient = kieClient;
+        this.httpClients = httpClients;
+        this.resultsClient = httpClients.client(HttpClients.Upstream.RESULTS);
+        this.telegramFilesClient = httpClients.client(HttpClients.Upstream.TELEGRAM_FILES);
+        this.executor = config.virtualThreads ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+        this.generationLimiter = new GenerationLimiter(config.generationMaxConcurrent, config.generationFamilyLimits);
+        this.generationQueue = new GenerationQueue(generationLimiter, config.generationQueueCapacity, executor);
+        this.pollingPolicy = new PollingPolicy(() -> db.getRecentModelDurations(2000), config.kieCallbacksEnabled());
+    }
+
+    private static DefaultBotOptions botOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setMaxThreads(TELEGRAM_SENDER_THREADS);
+        options.setGetUpdatesTimeout(TELEGRAM_UPDATES_TIMEOUT_SECONDS);
+        options.setRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(10_000)
+                .setConnectionRequestTimeout(10_000)
+                .setSocketTimeout((TELEGRAM_UPDATES_TIMEOUT_SECONDS + 25) * 1000)
+                .build());
+        return options;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21+, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void onTaskCallback(String taskId) {
+        completionScheduler.pollNow(taskId);
+    }
+
+    public void resumeGenerations() {
+        List<Database.GenerationJob> jobs = db.listSubmittedGenerationJobs();
+        for (Database.GenerationJob job : jobs) {
+            Database.User user = db.getUser(job.userId);
+            if (user == null) {
+                db.releaseReservation(job.userId, job.reservationId);
+                continue;
+            }
+            activeGenerations.add(job.userId);
+            Generation generation = new Generation(user, job.cost, job.model, job.reservationId, null, null, null);
+            generation.started = true;
+            GenerationQueue.Priority priority = db.hasSuccessfulPayment(user.tgId)
+                    ? GenerationQueue.Priority.PAID
+                    : GenerationQueue.Priority.FREE;
+            GenerationQueue.Job queued = new GenerationQueue.Job(user.tgId, job.model, priority, new GenerationQueue.Listener() {
+                @Override
+                public void onQueued(int position) {
+                }
+
+                @Override
+                public void onStart(GenerationLimiter.Permit permit) {
+                    generation.permit = permit;
+                    settleWhenDone(generation, resumeJob(generation, job));
+                }
+            });
+            if (generationQueue.submit(queued)) {
+                safeSend(job.chatId, "♻️ Бот был перезапущен. Ждём результат вашей генерации, токены сохранены.");
+            } else {
+                finishGeneration(generation, false, null);
+                safeSend(job.chatId, "♻️ Бот был перезапущен, но очередь переполнена. Повторите генерацию.\nТокены возвращены.");
+            }
+        }
+        if (!jobs.isEmpty()) {
+            System.out.println("Resumed " + jobs.size() + " generation jobs after restart");
+        }
+    }
+
+    private CompletableFuture<PollResult> resumeJob(Generation generation, Database.GenerationJob job) {
+        if (JOB_KIND_VEO.equals(job.taskKind)) {
+            return awaitVeoTask(job.taskId, job.chatId);
+        }
+        if (isKlingModel(job.model) && job.request != null) {
+            try {
+                KlingRequest request = mapper.readValue(job.request, KlingRequest.class);
+                return runKling(generation, job.chatId, job.model, request, job.taskId);
+            } catch (Exception e) {
+                System.out.println("Kling job request unreadable reservation=" + job.reservationId + ": " + e.getMessage());
+            }
+        }
+        return awaitTask(job.taskId, job.chatId, job.model);
     }
 
     @Override
@@ -149,7 +261,7 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         if (referrerId != null && user.referrerId == null) {
             boolean linked = db.setReferrerIfEmpty(userId, referrerId);
             if (linked) {
-                db.addBalance(userId, 50_000);
+                db.addBalance(userId, 50_000, "referral link");
                 safeSend(userId, "🎉 Вам начислено 50 000 токенов за переход по реферальной ссылке.");
             }
             user = db.getUser(userId);
@@ -757,7 +869,7 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         String description = "Пакет " + formatNumber(option.tokens) + " токенов";
         db.upsertSuccessfulPayment(userId, providerChargeId, telegramChargeId, payload, amountRub, option.tokens, receiptEmail, description);
 
-        db.addBalance(userId, option.tokens);
+        db.addBalance(userId, option.tokens, "payment " + telegramChargeId);
 
         if (user.referrerId != null) {
             long bonus = Math.round(option.tokens * 0.05);
@@ -794,7 +906,7 @@ public class AnnexAiBot extends TelegramLongPollingBot {
                 execute(new SendMessage(String.valueOf(chatId), "Пользователь не найден."));
                 return;
             }
-            db.addBalance(targetId, 50_000);
+            db.addBalance(targetId, 50_000, "admin grant by " + adminId);
             execute(new SendMessage(String.valueOf(chatId), "Выдано 50 000 токенов пользователю " + targetId));
         } catch (NumberFormatException e) {
             execute(new SendMessage(String.valueOf(chatId), "Некорректный tg_id."));
@@ -864,8 +976,23 @@ public class AnnexAiBot extends TelegramLongPollingBot {
                     "⏳ Уже идет генерация. Дождитесь завершения перед новым запросом."));
             return;
         }
+        if (generationQueue.isFull()) {
+            executeWithRetry(new SendMessage(String.valueOf(user.tgId),
+                    "⏳ Сейчас слишком много запросов. Повторите попытку через пару минут — токены не списаны."));
+            activeGenerations.remove(user.tgId);
+            return;
+        }
+        long unavailableFor = kieClient.unavailableForMillis(normalizedModel);
+        if (unavailableFor > 0) {
+            long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(unavailableFor + 59_999));
+            executeWithRetry(new SendMessage(String.valueOf(user.tgId),
+                    "⚠️ Сервис генерации сейчас не отвечает. Повторите попытку через " + minutes + " мин. — токены не списаны."));
+            activeGenerations.remove(user.tgId);
+            return;
+        }
         long cost = costForUser(user);
-        if (user.balance < cost) {
+        Long reservationId = db.reserveTokens(user.tgId, cost, normalizedModel);
+        if (reservationId == null) {
             db.clearPendingImages(user.tgId);
             SendMessage msg = new SendMessage(String.valueOf(user.tgId),
                     "😔 У вас не хватает токенов на обработку этого запроса. <b>Купите дополнительные токены</b> в нашем магазине или <b>пригласите друзей</b> по своей реферальной ссылке. За каждого друга вы будете получать 5% токенов от их пополнений.");
@@ -888,12 +1015,13 @@ public class AnnexAiBot extends TelegramLongPollingBot {
                         "Недостаточно изображений для генерации.\n" +
                                 "Сейчас: " + current + "/" + required + "\n" +
                                 hint));
+                db.releaseReservation(user.tgId, reservationId);
                 activeGenerations.remove(user.tgId);
                 return;
             }
         }
 
-        List<String> fileIds = db.consumePendingImages(user.tgId);
+        List<Database.PendingImage> fileIds = db.consumePendingImages(user.tgId);
         if (isFlux && fileIds.size() > 8) {
             fileIds = fileIds.subList(0, 8);
         }
@@ -909,18 +1037,21 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         if (isVeo && fileIds.size() > 2) {
             fileIds = fileIds.subList(0, 2);
         }
-        List<String> pendingImages = List.copyOf(fileIds);
-        db.addBalance(user.tgId, -cost);
+        List<Database.PendingImage> pendingImages = List.copyOf(fileIds);
 
         String modelLabel = modelLabel(normalizedModel);
         String ratioLabel = aspectRatioLabel(user.aspectRatio);
+        boolean waiting = generationQueue.size() > 0;
         Integer progressMessageId = null;
+        Integer statusMessageId;
+        String statusDetails = null;
         if (isGemini) {
-            SendMessage progress = new SendMessage(String.valueOf(user.tgId), "Пишу ответ...");
+            SendMessage progress = new SendMessage(String.valueOf(user.tgId), waiting ? "⏳ Ожидание в очереди" : "Пишу ответ...");
             Message sent = executeWithRetryMessage(progress);
             progressMessageId = sent == null ? null : sent.getMessageId();
+            statusMessageId = progressMessageId;
         } else {
-            StringBuilder startText = new StringBuilder("✅ Запрос принят. Генерация началась\n\n");
+            StringBuilder startText = new StringBuilder();
             startText.append("🧠 Модель: ").append(modelLabel).append("\n");
             if (isFlux) {
                 boolean flex = isFluxFlexModel(normalizedModel);
@@ -954,416 +1085,459 @@ public class AnnexAiBot extends TelegramLongPollingBot {
                 startText.append("🖼️ Файл: ").append(formatLabel).append("\n");
             }
             startText.append("💰 Стоимость: ").append(formatNumber(cost)).append(" токенов");
-            executeWithRetry(new SendMessage(String.valueOf(user.tgId), startText.toString()));
+            statusDetails = startText.toString();
+            String header = waiting ? "⏳ Запрос принят. Ожидание в очереди" : "✅ Запрос принят. Генерация началась";
+            Message sent = executeWithRetryMessage(new SendMessage(String.valueOf(user.tgId), header + "\n\n" + statusDetails));
+            statusMessageId = sent == null ? null : sent.getMessageId();
+        }
+
+        Generation generation = new Generation(user, cost, normalizedModel, reservationId, progressMessageId, statusMessageId, statusDetails);
+        generation.waitingShown = waiting;
+        db.createGenerationJob(reservationId, user.tgId, user.tgId, normalizedModel, cost);
+        GenerationQueue.Priority priority = db.hasSuccessfulPayment(user.tgId)
+                ? GenerationQueue.Priority.PAID
+                : GenerationQueue.Priority.FREE;
+        GenerationQueue.Job job = new GenerationQueue.Job(user.tgId, normalizedModel, priority, new GenerationQueue.Listener() {
+            @Override
+            public void onQueued(int position) {
+                updateGenerationStatus(generation, position);
+            }
+
+            @Override
+            public void onStart(GenerationLimiter.Permit permit) {
+                generation.permit = permit;
+                updateGenerationStatus(generation, 0);
+                runGeneration(generation, prompt, pendingImages);
+            }
+        });
+        if (!generationQueue.submit(job)) {
+            deleteMessageQuietly(user.tgId, statusMessageId);
+            finishGeneration(generation, false, null);
+            safeSend(user.tgId, "⏳ Сейчас слишком много запросов. Повторите попытку через пару минут.\nТокены возвращены.");
         }
+    }
 
-        Integer finalProgressMessageId = progressMessageId;
-        executor.submit(() -> {
-            boolean success = false;
-            try {
-                List<String> imageUrls = new ArrayList<>();
-                int i = 1;
-                for (String fileId : pendingImages) {
-                    String url = getTelegramFileUrl(fileId);
-                    String fileName = guessFileNameFromUrl(url, i);
-                    String uploaded = kieClient.uploadFileUrl(url, fileName);
-                    if (uploaded != null && !uploaded.isBlank()) {
-                        imageUrls.add(uploaded);
-                    }
-                    i++;
+    private void updateGenerationStatus(Generation generation, int position) {
+        synchronized (generation) {
+            if (generation.started || generation.statusMessageId == null) {
+                return;
+            }
+            String header;
+            if (position <= 0) {
+                generation.started = true;
+                if (!generation.waitingShown) {
+                    return;
                 }
+                header = generation.statusDetails == null ? "Пишу ответ..." : "✅ Запрос принят. Генерация началась";
+            } else {
+                generation.waitingShown = true;
+                header = generation.statusDetails == null
+                        ? "⏳ Место в очереди: " + position
+                        : "⏳ Запрос принят. Место в очереди: " + position;
+            }
+            String text = generation.statusDetails == null ? header : header + "\n\n" + generation.statusDetails;
+            try {
+                editMessage(generation.user.tgId, generation.statusMessageId, text, null);
+            } catch (Exception e) {
+                System.out.println("Queue status update failed: " + e.getMessage());
+            }
+        }
+    }
 
-                String resolution = mapResolution(user.resolution);
-                String outputFormat = mapFormat(user.outputFormat);
-                String aspectRatio = mapAspectRatio(user.aspectRatio);
-                String model = normalizeModel(user.currentModel);
-                String taskId;
-                if (isFluxModel(model)) {
-                    String preparedPrompt = prepareFluxPrompt(prompt);
-                    boolean flex = isFluxFlexModel(model);
-                    String fluxModel = imageUrls.isEmpty()
-                            ? (flex ? MODEL_FLUX_2_FLEX_TEXT : MODEL_FLUX_2_TEXT)
-                            : (flex ? MODEL_FLUX_2_FLEX_IMAGE : MODEL_FLUX_2_IMAGE);
-                    String fluxResolution = fluxResolutionValue(user.resolution);
-                    String fluxAspectRatio = normalizeFluxAspectRatio(user.aspectRatio, !imageUrls.isEmpty());
-                    System.out.println("Kie request model=" + fluxModel + " res=" + fluxResolution + " ratio=" + fluxAspectRatio + " images=" + imageUrls.size());
-                    taskId = kieClient.createFluxTask(fluxModel, preparedPrompt, imageUrls, fluxAspectRatio, fluxResolution);
-                } else if (isIdeogramModel(model)) {
-                    String preparedPrompt = prepareIdeogramPrompt(prompt);
-                    String speed = ideogramSpeedValue(user.ideogramSpeed);
-                    String style = null;
-                    String size = ideogramSizeValue(user.ideogramImageSize);
-                    boolean expand = user.ideogramExpandPrompt;
-                    if (isIdeogramCharacter(model)) {
-                        List<String> refs = imageUrls.isEmpty()
-                                ? List.of()
-                                : imageUrls.subList(0, Math.min(3, imageUrls.size()));
-                        System.out.println("Kie request model=" + MODEL_IDEOGRAM_CHARACTER + " speed=" + speed + " style=" + style + " size=" + size + " refs=" + refs.size());
-                        taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_CHARACTER, preparedPrompt, speed, style, expand, size, refs, null, null, 1, null);
-                    } else if (isIdeogramEdit(model)) {
-                        String imageUrl = imageUrls.size() > 0 ? imageUrls.get(0) : null;
-                        String maskUrl = imageUrls.size() > 1 ? imageUrls.get(1) : null;
-                        if (imageUrl == null || maskUrl == null) {
-                            throw new IllegalStateException("Для Edit нужны 2 изображения: исходник и маска.");
-                        }
-                        System.out.println("Kie request model=" + MODEL_IDEOGRAM_V3_EDIT + " speed=" + speed + " images=2");
-                        taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_V3_EDIT, preparedPrompt, speed, style, expand, null, null, imageUrl, maskUrl, null, null);
-                    } else {
-                        String imageUrl = imageUrls.size() > 0 ? imageUrls.get(0) : null;
-                        if (imageUrl == null) {
-                            throw new IllegalStateException("Для Remix нужно 1 изображение.");
-                        }
-                        System.out.println("Kie request model=" + MODEL_IDEOGRAM_V3_REMIX + " speed=" + speed + " style=" + style + " size=" + size + " images=1");
-                        taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_V3_REMIX, preparedPrompt, speed, style, expand, size, null, imageUrl, null, 1, null);
-                    }
-                } else if (isKlingModel(model)) {
-                    String preparedPrompt = prepareKlingPrompt(user, prompt);
-                    String ratio = klingAspectRatioLabel(user.klingAspectRatio);
-                    int seconds = klingDurationValue(user.klingDuration);
-                    boolean audio = user.klingAudioEnabled;
-                    String mode = klingModeValue(user.klingMode);
-                    List<String> clipImages = imageUrls.size() > 2 ? imageUrls.subList(0, 2) : imageUrls;
-                    int maxAttempts = 3;
-                    PollResult result = null;
-                    for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-                        System.out.println("Kie request model=" + MODEL_KLING_3 + " duration=" + seconds + " ratio=" + ratio + " mode=" + mode + " audio=" + audio + " images=" + clipImages.size() + " attempt=" + attempt + "/" + maxAttempts);
-                        taskId = kieClient.createKlingTask(preparedPrompt, clipImages, ratio, seconds, audio, mode);
-                        result = pollTaskAndSend(taskId, user.tgId, model);
-                        if (result.success || !result.timeout) {
-                            break;
-                        }
-                        try {
-                            Thread.sleep(1500L * attempt);
-                        } catch (InterruptedException ignored) {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                    }
-                    if (result == null) {
-                        throw new IllegalStateException("Пустой ответ от Kling.");
-                    }
-                    if (!result.success && result.timeout) {
-                        safeSend(user.tgId, "Генерация не удалась: " + mapKieErrorMessage("generate task timeout") + "\nТокены возвращены.");
-                    }
-                    success = result.success;
-                    return;
-                } else if (isSoraModel(model)) {
-                    String preparedPrompt = prepareSoraPrompt(prompt);
-                    int seconds = soraDurationValue(user.soraDuration);
-                    String ratio = soraAspectRatioValue(user.soraAspectRatio);
-                    List<String> clipImages = imageUrls.size() > 1 ? imageUrls.subList(0, 1) : imageUrls;
-                    String soraModel = clipImages.isEmpty() ? MODEL_SORA_2_TEXT : MODEL_SORA_2_IMAGE;
-                    System.out.println("Kie request model=" + soraModel + " duration=" + seconds + " ratio=" + ratio + " images=" + clipImages.size());
-                    taskId = kieClient.createSoraTask(soraModel, preparedPrompt, clipImages, ratio, seconds, "s3");
-                    PollResult result = pollTaskAndSend(taskId, user.tgId, model);
-                    success = result.success;
-                    return;
-                } else if (isVeoModel(model)) {
-                    String preparedPrompt = prepareVeoPrompt(prompt);
-                    String ratio = veoAspectRatioValue(user.veoAspectRatio);
-                    List<String> clipImages = imageUrls.size() > 2 ? imageUrls.subList(0, 2) : imageUrls;
-                    String veoModel = veoModeValue(user.veoMode);
-                    System.out.println("Kie request model=" + veoModel + " ratio=" + ratio + " images=" + clipImages.size());
-                    taskId = kieClient.createVeoTask(veoModel, preparedPrompt, clipImages, ratio);
-                    PollResult result = pollVeoTaskAndSend(taskId, user.tgId);
-                    success = result.success;
-                    return;
-                } else if (isGeminiModel(model)) {
-                    List<Database.GeminiMessage> history = user.geminiHistoryEnabled
-                            ? db.listGeminiMessages(user.tgId, GEMINI_HISTORY_LIMIT)
-                            : List.of();
-                    List<KieClient.ChatMessage> messages = buildGeminiMessages(history, prompt, imageUrls);
-                    System.out.println("Kie request gemini=" + model + " history=" + history.size() + " images=" + imageUrls.size());
-                    String responseText = kieClient.createGeminiCompletion(model, messages);
-                    if (responseText == null || responseText.isBlank()) {
-                        throw new IllegalStateException("Пустой ответ от модели.");
-                    }
-                    deleteMessageQuietly(user.tgId, finalProgressMessageId);
-                    String outputText = responseText;
-                    if (user.geminiShowCostEnabled) {
-                        outputText = outputText + "\n\n💰 Стоимость: " + formatNumber(cost) + " токенов";
-                    }
-                    sendLongMessage(user.tgId, outputText);
-                    if (user.geminiHistoryEnabled) {
-                        db.addGeminiMessage(user.tgId, "user", prompt);
-                        db.addGeminiMessage(user.tgId, "assistant", responseText);
+    private void runGeneration(Generation generation, String prompt, List<Database.PendingImage> pendingImages) {
+        Database.User user = generation.user;
+        long cost = generation.cost;
+        boolean success = false;
+        boolean handedOff = false;
+        try {
+            List<String> imageUrls = uploadReferenceImages(user.tgId, pendingImages);
+
+            String resolution = mapResolution(user.resolution);
+            String outputFormat = mapFormat(user.outputFormat);
+            String aspectRatio = mapAspectRatio(user.aspectRatio);
+            String model = normalizeModel(user.currentModel);
+            String taskId;
+            if (isFluxModel(model)) {
+                String preparedPrompt = prepareFluxPrompt(prompt);
+                boolean flex = isFluxFlexModel(model);
+                String fluxModel = imageUrls.isEmpty()
+                        ? (flex ? MODEL_FLUX_2_FLEX_TEXT : MODEL_FLUX_2_TEXT)
+                        : (flex ? MODEL_FLUX_2_FLEX_IMAGE : MODEL_FLUX_2_IMAGE);
+                String fluxResolution = fluxResolutionValue(user.resolution);
+                String fluxAspectRatio = normalizeFluxAspectRatio(user.aspectRatio, !imageUrls.isEmpty());
+                System.out.println("Kie request model=" + fluxModel + " res=" + fluxResolution + " ratio=" + fluxAspectRatio + " images=" + imageUrls.size());
+                taskId = kieClient.createFluxTask(fluxModel, preparedPrompt, imageUrls, fluxAspectRatio, fluxResolution);
+            } else if (isIdeogramModel(model)) {
+                String preparedPrompt = prepareIdeogramPrompt(prompt);
+                String speed = ideogramSpeedValue(user.ideogramSpeed);
+                String style = null;
+                String size = ideogramSizeValue(user.ideogramImageSize);
+                boolean expand = user.ideogramExpandPrompt;
+                if (isIdeogramCharacter(model)) {
+                    List<String> refs = imageUrls.isEmpty()
+                            ? List.of()
+                            : imageUrls.subList(0, Math.min(3, imageUrls.size()));
+                    System.out.println("Kie request model=" + MODEL_IDEOGRAM_CHARACTER + " speed=" + speed + " style=" + style + " size=" + size + " refs=" + refs.size());
+                    taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_CHARACTER, preparedPrompt, speed, style, expand, size, refs, null, null, 1, null);
+                } else if (isIdeogramEdit(model)) {
+                    String imageUrl = imageUrls.size() > 0 ? imageUrls.get(0) : null;
+                    String maskUrl = imageUrls.size() > 1 ? imageUrls.get(1) : null;
+                    if (imageUrl == null || maskUrl == null) {
+                        throw new IllegalStateException("Для Edit нужны 2 изображения: исходник и маска.");
                     }
-                    success = true;
-                    return;
+                    System.out.println("Kie request model=" + MODEL_IDEOGRAM_V3_EDIT + " speed=" + speed + " images=2");
+                    taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_V3_EDIT, preparedPrompt, speed, style, expand, null, null, imageUrl, maskUrl, null, null);
                 } else {
-                    if (MODEL_NANO_BANANA.equals(model) && !imageUrls.isEmpty()) {
-                        model = MODEL_NANO_BANANA_EDIT;
+                    String imageUrl = imageUrls.size() > 0 ? imageUrls.get(0) : null;
+                    if (imageUrl == null) {
+                        throw new IllegalStateException("Для Remix нужно 1 изображение.");
                     }
-                    System.out.println("Kie request model=" + model + " res=" + resolution + " ratio=" + aspectRatio + " images=" + imageUrls.size());
-                    taskId = kieClient.createNanoBananaTask(model, prompt, imageUrls, aspectRatio, outputFormat, resolution);
+                    System.out.println("Kie request model=" + MODEL_IDEOGRAM_V3_REMIX + " speed=" + speed + " style=" + style + " size=" + size + " images=1");
+                    taskId = kieClient.createIdeogramTask(MODEL_IDEOGRAM_V3_REMIX, preparedPrompt, speed, style, expand, size, null, imageUrl, null, 1, null);
                 }
-
-                PollResult result = pollTaskAndSend(taskId, user.tgId, model);
-                success = result.success;
-            } catch (Exception e) {
-                deleteMessageQuietly(user.tgId, finalProgressMessageId);
-                safeSend(user.tgId, "Ошибка при генерации: " + mapKieErrorMessage(e.getMessage()) + "\nТокены возвращены.");
-            } finally {
-                if (success) {
-                    db.addSpent(user.tgId, cost);
-                    db.recordModelUsage(user.tgId, normalizeModel(user.currentModel), cost);
-                } else {
-                    db.addBalance(user.tgId, cost);
+            } else if (isKlingModel(model)) {
+                KlingRequest request = new KlingRequest();
+                request.prompt = prepareKlingPrompt(user, prompt);
+                request.ratio = klingAspectRatioLabel(user.klingAspectRatio);
+                request.seconds = klingDurationValue(user.klingDuration);
+                request.audio = user.klingAudioEnabled;
+                request.mode = klingModeValue(user.klingMode);
+                request.images = new ArrayList<>(imageUrls.size() > 2 ? imageUrls.subList(0, 2) : imageUrls);
+                CompletableFuture<PollResult> pending = runKling(generation, user.tgId, model, request, null);
+                handedOff = true;
+                settleWhenDone(generation, pending);
+                return;
+            } else if (isSoraModel(model)) {
+                String preparedPrompt = prepareSoraPrompt(prompt);
+                int seconds = soraDurationValue(user.soraDuration);
+                String ratio = soraAspectRatioValue(user.soraAspectRatio);
+                List<String> clipImages = imageUrls.size() > 1 ? imageUrls.subList(0, 1) : imageUrls;
+                String soraModel = clipImages.isEmpty() ? MODEL_SORA_2_TEXT : MODEL_SORA_2_IMAGE;
+                System.out.println("Kie request model=" + soraModel + " duration=" + seconds + " ratio=" + ratio + " images=" + clipImages.size());
+                taskId = kieClient.createSoraTask(soraModel, preparedPrompt, clipImages, ratio, seconds, "s3");
+            } else if (isVeoModel(model)) {
+                String preparedPrompt = prepareVeoPrompt(prompt);
+                String ratio = veoAspectRatioValue(user.veoAspectRatio);
+                List<String> clipImages = imageUrls.size() > 2 ? imageUrls.subList(0, 2) : imageUrls;
+                String veoModel = veoModeValue(user.veoMode);
+                System.out.println("Kie request model=" + veoModel + " ratio=" + ratio + " images=" + clipImages.size());
+                taskId = kieClient.createVeoTask(veoModel, preparedPrompt, clipImages, ratio);
+                db.markGenerationJobSubmitted(generation.reservationId, taskId, JOB_KIND_VEO);
+                CompletableFuture<PollResult> pending = awaitVeoTask(taskId, user.tgId);
+                handedOff = true;
+                settleWhenDone(generation, pending);
+                return;
+            } else if (isGeminiModel(model)) {
+                List<Database.GeminiMessage> history = user.geminiHistoryEnabled
+                        ? db.listGeminiMessages(user.tgId, GEMINI_HISTORY_LIMIT)
+                        : List.of();
+                List<KieClient.ChatMessage> messages = buildGeminiMessages(history, prompt, imageUrls);
+                System.out.println("Kie request gemini=" + model + " history=" + history.size() + " images=" + imageUrls.size());
+                String responseText = kieClient.createGeminiCompletion(model, messages);
+                if (responseText == null || responseText.isBlank()) {
+                    throw new IllegalStateException("Пустой ответ от модели.");
                 }
-                activeGenerations.remove(user.tgId);
+                deleteMessageQuietly(user.tgId, generation.progressMessageId);
+                String outputText = responseText;
+                if (user.geminiShowCostEnabled) {
+                    outputText = outputText + "\n\n💰 Стоимость: " + formatNumber(cost) + " токенов";
+                }
+                sendLongMessage(user.tgId, outputText);
+                if (user.geminiHistoryEnabled) {
+                    db.addGeminiMessage(user.tgId, "user", prompt);
+                    db.addGeminiMessage(user.tgId, "assistant", responseText);
+                }
+                success = true;
+                return;
+            } else {
+                if (MODEL_NANO_BANANA.equals(model) && !imageUrls.isEmpty()) {
+                    model = MODEL_NANO_BANANA_EDIT;
+                }
+                System.out.println("Kie request model=" + model + " res=" + resolution + " ratio=" + aspectRatio + " images=" + imageUrls.size());
+                taskId = kieClient.createNanoBananaTask(model, prompt, imageUrls, aspectRatio, outputFormat, resolution);
+            }
+
+            db.markGenerationJobSubmitted(generation.reservationId, taskId, JOB_KIND_TASK);
+            CompletableFuture<PollResult> pending = awaitTask(taskId, user.tgId, model);
+            handedOff = true;
+            settleWhenDone(generation, pending);
+        } catch (Exception e) {
+            deleteMessageQuietly(user.tgId, generation.progressMessageId);
+            safeSend(user.tgId, "Ошибка при генерации: " + mapKieErrorMessage(e.getMessage()) + "\nТокены возвращены.");
+        } finally {
+            if (!handedOff) {
+                finishGeneration(generation, success, null);
             }
+        }
+    }
+
+    private void settleWhenDone(Generation generation, CompletableFuture<PollResult> pending) {
+        pending.whenComplete((result, error) -> {
+            if (error != null) {
+                deleteMessageQuietly(generation.user.tgId, generation.progressMessageId);
+                safeSend(generation.user.tgId, "Ошибка при генерации: " + mapKieErrorMessage(unwrap(error).getMessage()) + "\nТокены возвращены.");
+            }
+            boolean success = error == null && result != null && result.success;
+            finishGeneration(generation, success, success ? result.durationMillis : null);
         });
     }
 
-    private PollResult pollTaskAndSend(String taskId, long chatId, String modelUsed) {
-        int attempts = 200;
-        for (int i = 0; i < attempts; i++) {
-            try {
-                TimeUnit.SECONDS.sleep(3);
-                KieClient.TaskInfo info = kieClient.getTaskInfo(taskId);
-                if (i % 10 == 0) {
-                    System.out.println("Kie task " + taskId + " state=" + info.state);
-                }
-                if ("success".equalsIgnoreCase(info.state) || "succeeded".equalsIgnoreCase(info.state) || "completed".equalsIgnoreCase(info.state)) {
-                    List<String> urls = extractResultUrls(info.resultJson);
-                    if (urls.isEmpty()) {
-                        String msg = isKlingModel(modelUsed)
-                                ? "Готово, но без видео. Попробуйте другой запрос.\nТокены возвращены."
-                                : "Готово, но без изображений. Попробуйте другой запрос.\nТокены возвращены.";
-                        safeSend(chatId, msg);
-                        return PollResult.fail("empty_result", false);
-                    }
-                    boolean isVideo = isKlingModel(modelUsed) || isSoraModel(modelUsed) || isVeoModel(modelUsed) || urls.stream().anyMatch(this::isVideoUrl);
-                    for (String url : urls) {
-                        if (isVideo) {
-                            sendVideoFromUrl(chatId, url);
-                        } else {
-                            sendPhotoFromUrl(chatId, url);
-                        }
-                    }
-                    sendPostResponseHint(chatId);
-                    return PollResult.success();
-                }
-                if ("failed".equalsIgnoreCase(info.state)
-                        || "fail".equalsIgnoreCase(info.state)
-                        || "error".equalsIgnoreCase(info.state)
-                        || "canceled".equalsIgnoreCase(info.state)
-                        || "cancelled".equalsIgnoreCase(info.state)) {
-                    boolean timeout = info.failReason != null
-                            && info.failReason.toLowerCase(Locale.ROOT).contains("generate task timeout");
-                    if (!(isKlingModel(modelUsed) && timeout)) {
-                        safeSend(chatId, "Генерация не удалась: " + mapKieErrorMessage(info.failReason) + "\nТокены возвращены.");
-                    }
-                    return PollResult.fail(info.failReason, timeout);
+    private void finishGeneration(Generation generation, boolean success, Long durationMillis) {
+        long userId = generation.user.tgId;
+        try {
+            if (success) {
+                db.commitReservation(userId, generation.reservationId, durationMillis);
+            } else {
+                db.releaseReservation(userId, generation.reservationId);
+            }
+        } finally {
+            if (generation.permit != null) {
+                generation.permit.release();
+            }
+            activeGenerations.remove(userId);
+        }
+    }
+
+    private static class KlingRequest {
+        public String prompt;
+        public List<String> images;
+        public String ratio;
+        public int seconds;
+        public boolean audio;
+        public String mode;
+        public int attempt = 1;
+    }
+
+    private static class Generation {
+        final Database.User user;
+        final long cost;
+        final String model;
+        final long reservationId;
+        final Integer progressMessageId;
+        final Integer statusMessageId;
+        final String statusDetails;
+        volatile GenerationLimiter.Permit permit;
+        boolean waitingShown;
+        boolean started;
+
+        Generation(Database.User user, long cost, String model, long reservationId, Integer progressMessageId,
+                   Integer statusMessageId, String statusDetails) {
+            this.user = user;
+            this.cost = cost;
+            this.model = model;
+            this.reservationId = reservationId;
+            this.progressMessageId = progressMessageId;
+            this.statusMessageId = statusMessageId;
+            this.statusDetails = statusDetails;
+        }
+    }
+
+    private CompletableFuture<PollResult> runKling(Generation generation, long chatId, String model, KlingRequest request,
+                                                   String resumedTaskId) {
+        TaskSubmitter submitter = attempt -> {
+            System.out.println("Kie request model=" + MODEL_KLING_3 + " duration=" + request.seconds + " ratio=" + request.ratio + " mode=" + request.mode + " audio=" + request.audio + " images=" + request.images.size() + " attempt=" + attempt + "/" + KLING_MAX_ATTEMPTS);
+            String klingTaskId = kieClient.createKlingTask(request.prompt, request.images, request.ratio, request.seconds, request.audio, request.mode);
+            request.attempt = attempt;
+            db.markGenerationJobSubmitted(generation.reservationId, klingTaskId, JOB_KIND_TASK, mapper.writeValueAsString(request));
+            return klingTaskId;
+        };
+        CompletableFuture<PollResult> pending = resumedTaskId == null
+                ? submitWithTimeoutRetry(submitter, chatId, model, 1, KLING_MAX_ATTEMPTS)
+                : retryOnTimeout(awaitTask(resumedTaskId, chatId, model), submitter, chatId, model, request.attempt, KLING_MAX_ATTEMPTS);
+        return pending.thenApply(result -> {
+            if (!result.success && result.timeout) {
+                safeSend(chatId, "Генерация не удалась: " + mapKieErrorMessage("generate task timeout") + "\nТокены возвращены.");
+            }
+            return result;
+        });
+    }
+
+    private CompletableFuture<PollResult> submitWithTimeoutRetry(TaskSubmitter submitter, long chatId, String modelUsed, int attempt, int maxAttempts) {
+        String taskId;
+        try {
+            taskId = submitter.submit(attempt);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return retryOnTimeout(awaitTask(taskId, chatId, modelUsed), submitter, chatId, modelUsed, attempt, maxAttempts);
+    }
+
+    private CompletableFuture<PollResult> retryOnTimeout(CompletableFuture<PollResult> pending, TaskSubmitter submitter, long chatId,
+                                                         String modelUsed, int attempt, int maxAttempts) {
+        return pending.thenCompose(result -> {
+            if (result.success || !result.timeout || attempt >= maxAttempts) {
+                return CompletableFuture.completedFuture(result);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(1500L * attempt, TimeUnit.MILLISECONDS, executor);
+            return CompletableFuture.supplyAsync(() -> attempt + 1, delayed)
+                    .thenCompose(next -> submitWithTimeoutRetry(submitter, chatId, modelUsed, next, maxAttempts));
+        });
+    }
+
+    @FunctionalInterface
+    private interface TaskSubmitter {
+        String submit(int attempt) throws Exception;
+    }
+
+    private Throwable unwrap(Throwable error) {
+        Throwable current = error;
+        while ((current instanceof CompletionException || current instanceof ExecutionException) && current.getCause() != null) {
+            current = current.getCause();
+        }
+        return current;
+    }
+
+    private CompletableFuture<PollResult> awaitTask(String taskId, long chatId, String modelUsed) {
+        AtomicInteger polls = new AtomicInteger();
+        long submittedAt = System.currentTimeMillis();
+        AtomicLong completedAt = new AtomicLong();
+        return completionScheduler.trackAsync(taskId, pollingPolicy.cadenceFor(modelUsed), POLL_TIMEOUT_MILLIS,
+                        id -> {
+                            CompletableFuture<KieClient.TaskInfo> request = kieClient.getTaskInfoAsync(id);
+                            return cancelling(request.thenApply(info -> {
+                                if (polls.getAndIncrement() % 10 == 0) {
+                                    System.out.println("Kie task " + id + " state=" + info.state);
+                                }
+                                return isTerminalTaskState(info.state) ? info : null;
+                            }), request);
+                        })
+                .whenComplete((info, error) -> completedAt.set(System.currentTimeMillis()))
+                .handleAsync((info, error) -> deliverTaskResult(info, error, chatId, modelUsed)
+                        .withDuration(completedAt.get() - submittedAt), executor);
+    }
+
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<T> poll, CompletableFuture<?> request) {
+        poll.whenComplete((ignored, error) -> {
+            if (poll.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return poll;
+    }
+
+    private boolean isTerminalTaskState(String state) {
+        return isSuccessTaskState(state) || isFailedTaskState(state);
+    }
+
+    private boolean isSuccessTaskState(String state) {
+        return "success".equalsIgnoreCase(state) || "succeeded".equalsIgnoreCase(state) || "completed".equalsIgnoreCase(state);
+    }
+
+    private boolean isFailedTaskState(String state) {
+        return "failed".equalsIgnoreCase(state)
+                || "fail".equalsIgnoreCase(state)
+                || "error".equalsIgnoreCase(state)
+                || "canceled".equalsIgnoreCase(state)
+                || "cancelled".equalsIgnoreCase(state);
+    }
+
+    private PollResult deliverTaskResult(KieClient.TaskInfo info, Throwable error, long chatId, String modelUsed) {
+        if (error != null) {
+            Throwable cause = unwrap(error);
+            if (cause instanceof TimeoutException) {
+                boolean timeout = isKlingModel(modelUsed);
+                if (!timeout) {
+                    safeSend(chatId, "Время ожидания истекло. Попробуйте ещё раз.\nТокены возвращены.");
                 }
-            } catch (Exception e) {
-                safeSend(chatId, "Ошибка при проверке задачи: " + mapKieErrorMessage(e.getMessage()) + "\nТокены возвращены.");
-                return PollResult.fail(e.getMessage(), false);
+                return PollResult.fail("wait_timeout", timeout);
+            }
+            safeSend(chatId, "Ошибка при проверке задачи: " + mapKieErrorMessage(cause.getMessage()) + "\nТокены возвращены.");
+            return PollResult.fail(cause.getMessage(), false);
+        }
+        if (isSuccessTaskState(info.state)) {
+            List<String> urls = info.resultUrls;
+            if (urls.isEmpty()) {
+                String msg = isKlingModel(modelUsed)
+                        ? "Готово, но без видео. Попробуйте другой запрос.\nТокены возвращены."
+                        : "Готово, но без изображений. Попробуйте другой запрос.\nТокены возвращены.";
+                safeSend(chatId, msg);
+                return PollResult.fail("empty_result", false);
+            }
+            boolean isVideo = isKlingModel(modelUsed) || isSoraModel(modelUsed) || isVeoModel(modelUsed) || urls.stream().anyMatch(this::isVideoUrl);
+            if (config.resultAlbums && urls.size() > 1) {
+                sendResultAlbums(chatId, urls, isVideo);
+            } else {
+                sendResults(chatId, urls, isVideo);
             }
+            sendPostResponseHint(chatId);
+            return PollResult.success();
         }
-        boolean timeout = isKlingModel(modelUsed);
-        if (!timeout) {
-            safeSend(chatId, "Время ожидания истекло. Попробуйте ещё раз.\nТокены возвращены.");
+        boolean timeout = info.failReason != null
+                && info.failReason.toLowerCase(Locale.ROOT).contains("generate task timeout");
+        if (!(isKlingModel(modelUsed) && timeout)) {
+            safeSend(chatId, "Генерация не удалась: " + mapKieErrorMessage(info.failReason) + "\nТокены возвращены.");
         }
-        return PollResult.fail("wait_timeout", timeout);
+        return PollResult.fail(info.failReason, timeout);
     }
 
-    private PollResult pollVeoTaskAndSend(String taskId, long chatId) {
-        int attempts = 200;
-        for (int i = 0; i < attempts; i++) {
-            try {
-                TimeUnit.SECONDS.sleep(3);
-                KieClient.VeoTaskInfo info = kieClient.getVeoTaskInfo(taskId);
-                if (i % 10 == 0) {
-                    System.out.println("Kie veo task " + taskId + " successFlag=" + info.successFlag);
-                }
-                if (info.successFlag == 1) {
-                    if (info.resultUrls == null || info.resultUrls.isEmpty()) {
-                        safeSend(chatId, "Готово, но без видео. Попробуйте другой запрос.\nТокены возвращены.");
-                        return PollResult.fail("empty_result", false);
-                    }
-                    for (String url : info.resultUrls) {
-                        sendVideoFromUrl(chatId, url);
-                    }
-                    sendPostResponseHint(chatId);
-                    return PollResult.success();
-                }
-                if (info.successFlag == 2 || info.successFlag == 3) {
-                    safeSend(chatId, "Генерация не удалась: " + mapKieErrorMessage(info.errorMessage) + "\nТокены возвращены.");
-                    return PollResult.fail(info.errorMessage, false);
-                }
-            } catch (Exception e) {
-                safeSend(chatId, "Ошибка при проверке задачи: " + mapKieErrorMessage(e.getMessage()) + "\nТокены возвращены.");
-                return PollResult.fail(e.getMessage(), false);
+    private CompletableFuture<PollResult> awaitVeoTask(String taskId, long chatId) {
+        AtomicInteger polls = new AtomicInteger();
+        long submittedAt = System.currentTimeMillis();
+        AtomicLong completedAt = new AtomicLong();
+        return completionScheduler.trackAsync(taskId, pollingPolicy.cadenceFor(MODEL_VEO_3_1), POLL_TIMEOUT_MILLIS,
+                        id -> {
+                            CompletableFuture<KieClient.VeoTaskInfo> request = kieClient.getVeoTaskInfoAsync(id);
+                            return cancelling(request.thenApply(info -> {
+                                if (polls.getAndIncrement() % 10 == 0) {
+                                    System.out.println("Kie veo task " + id + " successFlag=" + info.successFlag);
+                                }
+                                return info.successFlag == 1 || info.successFlag == 2 || info.successFlag == 3 ? info : null;
+                            }), request);
+                        })
+                .whenComplete((info, error) -> completedAt.set(System.currentTimeMillis()))
+                .handleAsync((info, error) -> deliverVeoResult(info, error, chatId)
+                        .withDuration(completedAt.get() - submittedAt), executor);
+    }
+
+    private PollResult deliverVeoResult(KieClient.VeoTaskInfo info, Throwable error, long chatId) {
+        if (error != null) {
+            Throwable cause = unwrap(error);
+            if (cause instanceof TimeoutException) {
+                safeSend(chatId, "Время ожидания истекло. Попробуйте ещё раз.\nТокены возвращены.");
+                return PollResult.fail("wait_timeout", false);
+            }
+            safeSend(chatId, "Ошибка при проверке задачи: " + mapKieErrorMessage(cause.getMessage()) + "\nТокены возвращены.");
+            return PollResult.fail(cause.getMessage(), false);
+        }
+        if (info.successFlag == 1) {
+            if (info.resultUrls == null || info.resultUrls.isEmpty()) {
+                safeSend(chatId, "Готово, но без видео. Попробуйте другой запрос.\nТокены возвращены.");
+                return PollResult.fail("empty_result", false);
+            }
+            for (String url : info.resultUrls) {
+                sendVideoFromUrl(chatId, url);
             }
+            sendPostResponseHint(chatId);
+            return PollResult.success();
         }
-        safeSend(chatId, "Время ожидания истекло. Попробуйте ещё раз.\nТокены возвращены.");
-        return PollResult.fail("wait_timeout", false);
+        safeSend(chatId, "Генерация не удалась: " + mapKieErrorMessage(info.errorMessage) + "\nТокены возвращены.");
+        return PollResult.fail(info.errorMessage, false);
     }
 
     private static class PollResult {
         final boolean success;
         final String failReason;
         final boolean timeout;
+        final Long durationMillis;
 
-        private PollResult(boolean success, String failReason, boolean timeout) {
+        private PollResult(boolean success, String failReason, boolean timeout, Long durationMillis) {
             this.success = success;
             this.failReason = failReason;
             this.timeout = timeout;
+            this.durationMillis = durationMillis;
         }
 
         static PollResult success() {
-            return new PollResult(true, null, false);
+            return new PollResult(true, null, false, null);
         }
 
         static PollResult fail(String reason, boolean timeout) {
-            return new PollResult(false, reason, timeout);
-        }
-    }
-
-    private List<String> extractResultUrls(String resultJson) {
-        List<String> urls = new ArrayList<>();
-        if (resultJson == null || resultJson.isBlank()) {
-            return urls;
-        }
-        try {
-            JsonNode node = mapper.readTree(resultJson);
-            JsonNode arr = node.path("resultUrls");
-            if (arr.isArray()) {
-                for (JsonNode n : arr) {
-                    urls.add(n.asText());
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            JsonNode videoUrls = node.path("video_urls");
-            if (videoUrls.isArray()) {
-                for (JsonNode n : videoUrls) {
-                    urls.add(n.asText());
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            JsonNode videoUrlsAlt = node.path("videoUrls");
-            if (videoUrlsAlt.isArray()) {
-                for (JsonNode n : videoUrlsAlt) {
-                    urls.add(n.asText());
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            JsonNode videoUrl = node.path("videoUrl");
-            if (videoUrl.isTextual() && !videoUrl.asText().isBlank()) {
-                urls.add(videoUrl.asText());
-                return urls;
-            }
-            JsonNode videoUrlAlt = node.path("video_url");
-            if (videoUrlAlt.isTextual() && !videoUrlAlt.asText().isBlank()) {
-                urls.add(videoUrlAlt.asText());
-                return urls;
-            }
-            JsonNode imageUrls = node.path("image_urls");
-            if (imageUrls.isArray()) {
-                for (JsonNode n : imageUrls) {
-                    urls.add(n.asText());
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            JsonNode images = node.path("images");
-            if (images.isArray()) {
-                for (JsonNode n : images) {
-                    if (n.isTextual()) {
-                        urls.add(n.asText());
-                    } else {
-                        String url = n.path("url").asText();
-                        if (url == null || url.isBlank()) {
-                            url = n.path("image_url").asText();
-                        }
-                        if (url != null && !url.isBlank()) {
-                            urls.add(url);
-                        }
-                    }
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            JsonNode videos = node.path("videos");
-            if (videos.isArray()) {
-                for (JsonNode n : videos) {
-                    if (n.isTextual()) {
-                        urls.add(n.asText());
-                    } else {
-                        String url = n.path("url").asText();
-                        if (url == null || url.isBlank()) {
-                            url = n.path("video_url").asText();
-                        }
-                        if (url != null && !url.isBlank()) {
-                            urls.add(url);
-                        }
-                    }
-                }
-                if (!urls.isEmpty()) {
-                    return urls;
-                }
-            }
-            String singleUrl = node.path("image_url").asText();
-            if (singleUrl != null && !singleUrl.isBlank()) {
-                urls.add(singleUrl);
-            }
-            String singleVideo = node.path("video_url").asText();
-            if (singleVideo != null && !singleVideo.isBlank()) {
-                urls.add(singleVideo);
-            }
-        } catch (Exception e) {
-            return urls;
+            return new PollResult(false, reason, timeout, null);
         }
-        return urls;
-    }
 
-    private String extractResultText(String resultJson) {
-        if (resultJson == null || resultJson.isBlank()) {
-            return "";
+        PollResult withDuration(long millis) {
+            return success ? new PollResult(true, null, false, millis) : this;
         }
-        try {
-            JsonNode node = mapper.readTree(resultJson);
-            JsonNode text = node.path("text");
-            if (text.isTextual()) {
-                return text.asText();
-            }
-            JsonNode content = node.path("content");
-            if (content.isTextual()) {
-                return content.asText();
-            }
-            JsonNode result = node.path("result");
-            if (result.isTextual()) {
-                return result.asText();
-            }
-            JsonNode resultText = result.path("text");
-            if (resultText.isTextual()) {
-                return resultText.asText();
-            }
-            JsonNode choices = node.path("choices");
-            if (choices.isArray() && choices.size() > 0) {
-                JsonNode first = choices.get(0);
-                JsonNode msg = first.path("message");
-                JsonNode msgContent = msg.path("content");
-                if (msgContent.isTextual()) {
-                    return msgContent.asText();
-                }
-                JsonNode choiceText = first.path("text");
-                if (choiceText.isTextual()) {
-                    return choiceText.asText();
-                }
-            }
-        } catch (Exception ignored) {
-        }
-        return "";
     }
 
     private void sendInvoice(long chatId, Database.User user, String optionKey, PurchaseOption option) throws TelegramApiException {
@@ -2232,7 +2406,15 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         Map<String, Long> counts = db.getModelUsageCounts();
         StringBuilder sb = new StringBuilder("📊 Статистика\n\n");
         sb.append("Всего пользователей: ").append(total).append("\n");
-        sb.append("Активных подписок: ").append(activeSubs).append("\n\n");
+        sb.append("Активных подписок: ").append(activeSubs).append("\n");
+        sb.append("Генерации: ").append(generationLimiter.stats()).append("\n");
+        sb.append("Очередь: ").append(generationQueue.stats()).append("\n");
+        sb.append("Задач Kie в ожидании: ").append(completionScheduler.inFlight()).append("\n");
+        sb.append("Кэш пользователей: ").append(db.userCacheStats()).append("\n");
+        sb.append("Кэш файлов Telegram: ").append(telegramFiles.stats()).append("\n");
+        sb.append(httpClients.stats());
+        sb.append("Защита Kie: ").append(kieClient.guardStats()).append("\n");
+        sb.append("Расхождений баланса с журналом: ").append(db.countLedgerMismatches()).append("\n\n");
         sb.append("Использование моделей:\n");
         if (counts.isEmpty()) {
             sb.append("— нет данных");
@@ -2280,24 +2462,50 @@ public class AnnexAiBot extends TelegramLongPollingBot {
                     .url(url)
                     .header("User-Agent", "annexai-bot/1.0")
                     .build();
-            try (Response response = httpClient.newCall(request).execute()) {
-                if (!response.isSuccessful() || response.body() == null) {
-                    safeSend(chatId, "Не удалось загрузить изображение по ссылке.");
-                    return;
-                }
-                tempFile = Files.createTempFile("kie_", ".png");
-                try (var in = response.body().byteStream()) {
-                    Files.copy(in, tempFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            for (int attempt = 1; ; attempt++) {
+                try (Response response = resultsClient.newCall(request).execute()) {
+                    ResponseBody body = response.body();
+                    if (!response.isSuccessful() || body == null) {
+                        safeSend(chatId, "Не удалось загрузить изображение по ссылке.");
+                        return;
+                    }
+                    long length = body.contentLength();
+                    byte[] buffered = null;
+                    if (length <= 0 || length > TELEGRAM_PHOTO_MAX_BYTES) {
+                        try (InputStream in = body.byteStream()) {
+                            byte[] head = length > TELEGRAM_PHOTO_MAX_BYTES
+                                    ? new byte[0]
+                                    : in.readNBytes((int) TELEGRAM_PHOTO_MAX_BYTES + 1);
+                            if (length > TELEGRAM_PHOTO_MAX_BYTES || head.length > TELEGRAM_PHOTO_MAX_BYTES) {
+                                tempFile = spillToTempFile(head, in);
+                                break;
+                            }
+                            buffered = head;
+                        }
+                    }
+                    SendPhoto photo = new SendPhoto();
+                    photo.setChatId(String.valueOf(chatId));
+                    photo.setPhoto(new InputFile(buffered != null ? new ByteArrayInputStream(buffered) : body.byteStream(),
+                            guessFileNameFromUrl(url, 1)));
+                    try {
+                        execute(photo);
+                        return;
+                    } catch (TelegramApiException e) {
+                        if (!isRetryable(e) || attempt >= 3) {
+                            throw e;
+                        }
+                    }
                 }
+                sleep(500);
             }
             long size = Files.size(tempFile);
-            if (size > 10 * 1024 * 1024) {
-                compressedFile = compressToTelegramPhoto(tempFile);
+            if (size > TELEGRAM_PHOTO_MAX_BYTES) {
+                compressedFile = imageCompressor.compress(tempFile);
                 if (compressedFile != null) {
                     SendPhoto photo = new SendPhoto();
                     photo.setChatId(String.valueOf(chatId));
                     photo.setPhoto(new InputFile(compressedFile.toFile()));
-                    photo.setCaption("Вот <a href=\"" + url + "\">прямая ссылка</a> на качественную версию.");
+                    photo.setCaption(directLinkCaption(url));
                     photo.setParseMode("HTML");
                     executeWithRetry(photo);
                 } else {
@@ -2330,6 +2538,171 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         }
     }
 
+    private static Path spillToTempFile(byte[] head, InputStream rest) throws IOException {
+        Path file = Files.createTempFile("kie_", ".png");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(head);
+            rest.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+    private void sendResults(long chatId, List<String> urls, boolean isVideo) {
+        for (String url : urls) {
+            if (isVideo) {
+                sendVideoFromUrl(chatId, url);
+            } else {
+                sendPhotoFromUrl(chatId, url);
+            }
+        }
+    }
+
+    private void sendResultAlbums(long chatId, List<String> urls, boolean isVideo) {
+        for (int from = 0; from < urls.size(); from += TELEGRAM_ALBUM_MAX_ITEMS) {
+            List<String> group = urls.subList(from, Math.min(urls.size(), from + TELEGRAM_ALBUM_MAX_ITEMS));
+            if (group.size() < 2 || !sendAlbum(chatId, group, isVideo)) {
+                sendResults(chatId, group, isVideo);
+            }
+        }
+    }
+
+    private boolean sendAlbum(long chatId, List<String> urls, boolean isVideo) {
+        List<InputMedia> byUrl = new ArrayList<>();
+        for (String url : urls) {
+            byUrl.add(isVideo ? new InputMediaVideo(url) : new InputMediaPhoto(url));
+        }
+        if (trySendAlbum(chatId, byUrl)) {
+            return true;
+        }
+        if (isVideo) {
+            return false;
+        }
+        List<CompletableFuture<AlbumPhoto>> downloads = new ArrayList<>();
+        for (String url : urls) {
+            downloads.add(CompletableFuture.supplyAsync(() -> downloadAlbumPhoto(url), executor));
+        }
+        List<AlbumPhoto> photos = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            AlbumPhoto photo = downloads.get(i).join();
+            if (photo == null) {
+                failed.add(urls.get(i));
+            } else {
+                photos.add(photo);
+            }
+        }
+        try {
+            if (photos.size() >= 2) {
+                List<InputMedia> uploads = new ArrayList<>();
+                for (AlbumPhoto photo : photos) {
+                    InputMediaPhoto media = new InputMediaPhoto();
+                    media.setMedia(photo.file.toFile(), photo.file.getFileName().toString());
+                    if (photo.compressed) {
+                        media.setCaption(directLinkCaption(photo.url));
+                        media.setParseMode("HTML");
+                    }
+                    uploads.add(media);
+                }
+                if (!trySendAlbum(chatId, uploads)) {
+                    return false;
+                }
+            } else {
+                for (AlbumPhoto photo : photos) {
+                    SendPhoto single = new SendPhoto();
+                    single.setChatId(String.valueOf(chatId));
+                    single.setPhoto(new InputFile(photo.file.toFile()));
+                    if (photo.compressed) {
+                        single.setCaption(directLinkCaption(photo.url));
+                        single.setParseMode("HTML");
+                    }
+                    try {
+                        executeWithRetry(single);
+                    } catch (Exception e) {
+                        failed.add(photo.url);
+                    }
+                }
+            }
+            for (String url : failed) {
+                sendPhotoFromUrl(chatId, url);
+            }
+            return true;
+        } finally {
+            for (AlbumPhoto photo : photos) {
+                try {
+                    Files.deleteIfExists(photo.file);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private boolean trySendAlbum(long chatId, List<InputMedia> media) {
+        SendMediaGroup album = new SendMediaGroup();
+        album.setChatId(String.valueOf(chatId));
+        album.setMedias(media);
+        try {
+            executeWithRetryInternal(() -> execute(album), 3);
+            return true;
+        } catch (TelegramApiException e) {
+            System.out.println("Album send failed chat=" + chatId + " items=" + media.size() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private AlbumPhoto downloadAlbumPhoto(String url) {
+        Path file = null;
+        try {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("User-Agent", "annexai-bot/1.0")
+                    .build();
+            try (Response response = resultsClient.newCall(request).execute()) {
+                if (!response.isSuccessful() || response.body() == null) {
+                    return null;
+                }
+                file = Files.createTempFile("kie_", ".png");
+                try (var in = response.body().byteStream()) {
+                    Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (Files.size(file) <= TELEGRAM_PHOTO_MAX_BYTES) {
+                Path ready = file;
+                file = null;
+                return new AlbumPhoto(url, ready, false);
+            }
+            Path compressed = imageCompressor.compress(file);
+            return compressed == null ? null : new AlbumPhoto(url, compressed, true);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private static String directLinkCaption(String url) {
+        return "Вот <a href=\"" + url + "\">прямая ссылка</a> на качественную версию.";
+    }
+
+    private static class AlbumPhoto {
+        final String url;
+        final Path file;
+        final boolean compressed;
+
+        AlbumPhoto(String url, Path file, boolean compressed) {
+            this.url = url;
+            this.file = file;
+            this.compressed = compressed;
+        }
+    }
+
     private void sendVideoFromUrl(long chatId, String url) {
         try {
             SendVideo video = new SendVideo();
@@ -2429,12 +2802,12 @@ public class AnnexAiBot extends TelegramLongPollingBot {
     private String loadTextFromUrl(String url, int maxChars) {
         try {
             Request request = new Request.Builder().url(url).build();
-            try (Response response = httpClient.newCall(request).execute()) {
+            try (Response response = telegramFilesClient.newCall(request).execute()) {
                 if (!response.isSuccessful() || response.body() == null) {
                     return null;
                 }
                 byte[] bytes = response.body().bytes();
-                String text = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+                String text = new String(bytes, StandardCharsets.UTF_8);
                 if (text.length() > maxChars) {
                     return text.substring(0, maxChars);
                 }
@@ -2445,86 +2818,113 @@ public class AnnexAiBot extends TelegramLongPollingBot {
         }
     }
 
-    private Path compressToTelegramPhoto(Path original) {
+    private List<String> uploadReferenceImages(long userId, List<Database.PendingImage> images) throws Exception {
+        List<String> imageUrls = new ArrayList<>();
+        if (images.isEmpty()) {
+            return imageUrls;
+        }
+        long started = System.nanoTime();
+        AtomicLong getFileNanos = new AtomicLong();
+        AtomicLong uploadNanos = new AtomicLong();
+        int ready = 0;
+        List<CompletableFuture<String>> uploads = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            Database.PendingImage image = images.get(i);
+            if (image.uploadedUrl != null) {
+                ready++;
+                uploads.add(CompletableFuture.completedFuture(image.uploadedUrl));
+            } else {
+                uploads.add(referenceUpload(image.fileId, image.fileUniqueId, i + 1, getFileNanos, uploadNanos));
+            }
+        }
         try {
-            BufferedImage source = ImageIO.read(original.toFile());
-            if (source == null) {
-                return null;
-            }
-            BufferedImage base = toRgb(source);
-            int width = base.getWidth();
-            int height = base.getHeight();
-            float[] qualities = new float[]{0.92f, 0.85f, 0.75f, 0.65f, 0.55f, 0.45f, 0.35f};
-            double scale = 1.0;
-
-            for (int scaleTry = 0; scaleTry < 4; scaleTry++) {
-                BufferedImage scaled = scale == 1.0 ? base : resize(base, (int) (width * scale), (int) (height * scale));
-                for (float q : qualities) {
-                    byte[] data = writeJpeg(scaled, q);
-                    if (data != null && data.length <= 10 * 1024 * 1024) {
-                        Path out = Files.createTempFile("kie_compressed_", ".jpg");
-                        Files.write(out, data);
-                        return out;
-                    }
+            for (CompletableFuture<String> upload : uploads) {
+                String uploaded = upload.join();
+                if (uploaded != null && !uploaded.isBlank()) {
+                    imageUrls.add(uploaded);
                 }
-                scale *= 0.85;
             }
-        } catch (Exception ignored) {
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            throw cause instanceof Exception exception ? exception : e;
         }
-        return null;
+        System.out.println("Reference images user=" + userId + " count=" + images.size() + " ready=" + ready
+                + " getFile=" + TimeUnit.NANOSECONDS.toMillis(getFileNanos.get()) + "ms"
+                + " upload=" + TimeUnit.NANOSECONDS.toMillis(uploadNanos.get()) + "ms"
+                + " wall=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+        return imageUrls;
     }
 
-    private BufferedImage toRgb(BufferedImage source) {
-        BufferedImage rgb = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = rgb.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.drawImage(source, 0, 0, null);
-        g.dispose();
-        return rgb;
-    }
-
-    private BufferedImage resize(BufferedImage source, int width, int height) {
-        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = resized.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g.drawImage(source, 0, 0, width, height, null);
-        g.dispose();
-        return resized;
+    private void prefetchReferenceImage(long userId, String fileId, String fileUniqueId) {
+        if (fileUniqueId == null) {
+            return;
+        }
+        long started = System.nanoTime();
+        AtomicLong getFileNanos = new AtomicLong();
+        AtomicLong uploadNanos = new AtomicLong();
+        referenceUpload(fileId, fileUniqueId, 1, getFileNanos, uploadNanos).whenComplete((uploaded, error) -> {
+            if (error != null) {
+                System.out.println("Reference prefetch failed user=" + userId + ": " + unwrap(error).getMessage());
+                return;
+            }
+            System.out.println("Reference prefetch user=" + userId
+                    + " getFile=" + TimeUnit.NANOSECONDS.toMillis(getFileNanos.get()) + "ms"
+                    + " upload=" + TimeUnit.NANOSECONDS.toMillis(uploadNanos.get()) + "ms"
+                    + " wall=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+        });
     }
 
-    private byte[] writeJpeg(BufferedImage image, float quality) {
-        ImageWriter writer = null;
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
-            if (!writers.hasNext()) {
-                return null;
+    private CompletableFuture<String> referenceUpload(String fileId, String fileUniqueId, int index,
+                                                      AtomicLong getFileNanos, AtomicLong uploadNanos) {
+        CompletableFuture<String> upload = new CompletableFuture<>();
+        if (fileUniqueId != null) {
+            CompletableFuture<String> inFlight = referenceUploadsInFlight.putIfAbsent(fileUniqueId, upload);
+            if (inFlight != null) {
+                return inFlight;
             }
-            writer = writers.next();
-            ImageWriteParam param = writer.getDefaultWriteParam();
-            if (param.canWriteCompressed()) {
-                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                param.setCompressionQuality(quality);
+        }
+        executor.execute(() -> {
+            try {
+                upload.complete(uploadReference(fileId, fileUniqueId, index, getFileNanos, uploadNanos));
+            } catch (Exception e) {
+                upload.completeExceptionally(e);
+            } finally {
+                if (fileUniqueId != null) {
+                    referenceUploadsInFlight.remove(fileUniqueId, upload);
+                }
             }
-            try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
-                writer.setOutput(ios);
-                writer.write(null, new IIOImage(image, null, null), param);
+        });
+        return upload;
+    }
+
+    private String uploadReference(String fileId, String fileUniqueId, int index,
+                                   AtomicLong getFileNanos, AtomicLong uploadNanos) throws Exception {
+        if (fileUniqueId != null) {
+            String cached = db.findUploadedFile(fileUniqueId);
+            if (cached != null) {
+                return cached;
             }
-            return baos.toByteArray();
-        } catch (Exception e) {
-            return null;
+        }
+        referenceUploads.acquireUninterruptibly();
+        try {
+            long getFileStarted = System.nanoTime();
+            String url = getTelegramFileUrl(fileId);
+            long uploadStarted = System.nanoTime();
+            getFileNanos.addAndGet(uploadStarted - getFileStarted);
+            String uploaded = kieClient.uploadFileUrl(url, guessFileNameFromUrl(url, index));
+            uploadNanos.addAndGet(System.nanoTime() - uploadStarted);
+            if (fileUniqueId != null && uploaded != null && !uploaded.isBlank()) {
+                db.saveUploadedFile(fileUniqueId, uploaded, System.currentTimeMillis() + KIE_UPLOAD_REUSE_MILLIS);
+            }
+            return uploaded;
         } finally {
-            if (writer != null) {
-                writer.dispose();
-            }
+            referenceUploads.release();
         }
     }
 
     private String getTelegramFileUrl(String fileId) throws TelegramApiException {
-        GetFile getFile = new GetFile(fileId);
-        org.telegram.telegrambots.meta.api.objects.File file = execute(getFile);
-        return "https://api.telegram.org/file/bot" + config.botToken + "/" + file.getFilePath();
+        String filePath = telegramFiles.filePath(fileId, id -> execute(new GetFile(id)).getFilePath());
+        return "https://api.telegram.org/file/bot" + config.botToken + "/" + filePath;
     }
 
     private String guessFileNameFromUrl(String url, int index) {
@@ -2569,7 +2969,8 @@ public class AnnexAiBot extends TelegramLongPollingBot {
             }
             return true;
         }
-        db.addPendingImage(userId, best.getFileId(), maxPhotos);
+        db.addPendingImage(userId, best.getFileId(), best.getFileUniqueId(), maxPhotos);
+        prefetchReferenceImage(userId, best.getFileId(), best.getFileUniqueId());
         return false;
     }
 
@@ -3325,6 +3726,9 @@ public class AnnexAiBot extends TelegramLongPollingBot {
             return "Неизвестная ошибка.";
         }
         String lower = raw.toLowerCase(Locale.ROOT);
+        if (lower.contains("kie unavailable")) {
+            return "Сервис генерации сейчас перегружен. Повторите попытку через пару минут.";
+        }
         if (lower.contains("server exception")) {
             return "Ошибка сервера, попробуйте еще раз.";
         }
@@ -8,12 +8,21 @@ public class App {
         Config config = Config.load();
         Database db = new Database(config.dbPath);
         db.init();
+        Runtime.getRuntime().addShutdownHook(new Thread(db::close, "db-shutdown"));
 
-        KieClient kieClient = new KieClient(config);
-        AnnexAiBot bot = new AnnexAiBot(config, db, kieClient);
+        HttpClients httpClients = new HttpClients();
+        KieClient kieClient = new KieClient(config, httpClients);
+        AnnexAiBot bot = new AnnexAiBot(config, db, kieClient, httpClients);
+
+        if (config.kieCallbacksEnabled()) {
+            KieCallbackServer callbackServer = new KieCallbackServer(
+                    config.kieCallbackPort, config.kieCallbackPath(), config.kieCallbackSecret, bot::onTaskCallback);
+            callbackServer.start();
+        }
 
         TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
         botsApi.registerBot(bot);
+        bot.resumeGenerations();
 
         System.out.println("Bot started");
     }
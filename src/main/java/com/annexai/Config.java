@@ -1,8 +1,12 @@
 package com.annexai;
 
+import java.net.URI;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 public class Config {
     public final String botToken;
@@ -16,6 +20,14 @@ public class Config {
     public final String timeZone;
     public final int vatCode;
     public final Integer taxSystemCode;
+    public final String kieCallbackUrl;
+    public final int kieCallbackPort;
+    public final String kieCallbackSecret;
+    public final boolean virtualThreads;
+    public final int generationMaxConcurrent;
+    public final Map<ModelFamily, Integer> generationFamilyLimits;
+    public final int generationQueueCapacity;
+    public final boolean resultAlbums;
 
     private Config(String botToken,
                    String botUsername,
@@ -27,7 +39,15 @@ public class Config {
                    String dbPath,
                    String timeZone,
                    int vatCode,
-                   Integer taxSystemCode) {
+                   Integer taxSystemCode,
+                   String kieCallbackUrl,
+                   int kieCallbackPort,
+                   String kieCallbackSecret,
+                   boolean virtualThreads,
+                   int generationMaxConcurrent,
+                   Map<ModelFamily, Integer> generationFamilyLimits,
+                   int generationQueueCapacity,
+                   boolean resultAlbums) {
         this.botToken = botToken;
         this.botUsername = botUsername;
         this.adminIds = adminIds;
@@ -39,28 +59,52 @@ public class Config {
         this.timeZone = timeZone;
         this.vatCode = vatCode;
         this.taxSystemCode = taxSystemCode;
+        this.kieCallbackUrl = kieCallbackUrl;
+        this.kieCallbackPort = kieCallbackPort;
+        this.kieCallbackSecret = kieCallbackSecret;
+        this.virtualThreads = virtualThreads;
+        this.generationMaxConcurrent = generationMaxConcurrent;
+        this.generationFamilyLimits = generationFamilyLimits;
+        this.generationQueueCapacity = generationQueueCapacity;
+        this.resultAlbums = resultAlbums;
     }
 
     public static Config load() {
-        String botToken = envRequired("BOT_TOKEN");
-        String botUsername = envRequired("BOT_USERNAME");
-        Set<Long> adminIds = parseAdminIds(System.getenv("ADMIN_IDS"));
+        return load(System::getenv);
+    }
+
+    static Config load(Function<String, String> env) {
+        String botToken = envRequired(env, "BOT_TOKEN");
+        String botUsername = envRequired(env, "BOT_USERNAME");
+        Set<Long> adminIds = parseAdminIds(env.apply("ADMIN_IDS"));
 
-        String paymentProviderToken = envRequired("PAYMENT_PROVIDER_TOKEN");
+        String paymentProviderToken = envRequired(env, "PAYMENT_PROVIDER_TOKEN");
 
-        String kieApiKey = envRequired("KIE_API_KEY");
-        String kieApiBase = envDefault("KIE_API_BASE", "https://api.kie.ai");
-        String kieUploadBase = envDefault("KIE_UPLOAD_BASE", "https://kieai.redpandaai.co");
+        String kieApiKey = envRequired(env, "KIE_API_KEY");
+        String kieApiBase = envDefault(env, "KIE_API_BASE", "https://api.kie.ai");
+        String kieUploadBase = envDefault(env, "KIE_UPLOAD_BASE", "https://kieai.redpandaai.co");
 
-        String dbPath = envDefault("BOT_DB_PATH", "data/bot.db");
-        String timeZone = envDefault("BOT_TIMEZONE", "Europe/Moscow");
+        String dbPath = envDefault(env, "BOT_DB_PATH", "data/bot.db");
+        String timeZone = envDefault(env, "BOT_TIMEZONE", "Europe/Moscow");
 
-        int vatCode = Integer.parseInt(envDefault("YOOKASSA_VAT_CODE", "1"));
-        String taxSystemCodeRaw = System.getenv("YOOKASSA_TAX_SYSTEM_CODE");
+        int vatCode = Integer.parseInt(envDefault(env, "YOOKASSA_VAT_CODE", "1"));
+        String taxSystemCodeRaw = env.apply("YOOKASSA_TAX_SYSTEM_CODE");
         Integer taxSystemCode = taxSystemCodeRaw == null || taxSystemCodeRaw.isBlank()
                 ? null
                 : Integer.parseInt(taxSystemCodeRaw.trim());
 
+        String kieCallbackUrl = envDefault(env, "KIE_CALLBACK_URL", null);
+        int kieCallbackPort = Integer.parseInt(envDefault(env, "KIE_CALLBACK_PORT", "8085"));
+        String kieCallbackSecret = kieCallbackUrl == null
+                ? envDefault(env, "KIE_CALLBACK_SECRET", null)
+                : envRequired(env, "KIE_CALLBACK_SECRET");
+
+        boolean virtualThreads = "virtual".equalsIgnoreCase(envDefault(env, "GENERATION_THREADS", "platform"));
+        int generationMaxConcurrent = Integer.parseInt(envDefault(env, "GENERATION_MAX_CONCURRENT", "64"));
+        Map<ModelFamily, Integer> generationFamilyLimits = parseFamilyLimits(env.apply("GENERATION_FAMILY_LIMITS"));
+        int generationQueueCapacity = Integer.parseInt(envDefault(env, "GENERATION_QUEUE_CAPACITY", "500"));
+        boolean resultAlbums = Boolean.parseBoolean(envDefault(env, "RESULT_ALBUMS", "false"));
+
         return new Config(
                 botToken,
                 botUsername,
@@ -72,20 +116,40 @@ public class Config {
                 dbPath,
                 timeZone,
                 vatCode,
-                taxSystemCode
+                taxSystemCode,
+                kieCallbackUrl,
+                kieCallbackPort,
+                kieCallbackSecret,
+                virtualThreads,
+                generationMaxConcurrent,
+                generationFamilyLimits,
+                generationQueueCapacity,
+                resultAlbums
         );
     }
 
-    private static String envRequired(String key) {
-        String value = System.getenv(key);
+    public boolean kieCallbacksEnabled() {
+        return kieCallbackUrl != null;
+    }
+
+    public String kieCallbackPath() {
+        if (kieCallbackUrl == null) {
+            return null;
+        }
+        String path = URI.create(kieCallbackUrl).getPath();
+        return path == null || path.isBlank() ? "/" : path;
+    }
+
+    private static String envRequired(Function<String, String> env, String key) {
+        String value = env.apply(key);
         if (value == null || value.isBlank()) {
             throw new IllegalStateException("Missing required env: " + key);
         }
         return value.trim();
     }
 
-    private static String envDefault(String key, String def) {
-        String value = System.getenv(key);
+    private static String envDefault(Function<String, String> env, String key, String def) {
+        String value = env.apply(key);
         if (value == null || value.isBlank()) {
             return def;
         }
@@ -103,4 +167,22 @@ public class Config {
                 .forEach(s -> ids.add(Long.parseLong(s)));
         return ids;
     }
+
+    private static Map<ModelFamily, Integer> parseFamilyLimits(String raw) {
+        Map<ModelFamily, Integer> limits = new EnumMap<>(ModelFamily.class);
+        if (raw == null || raw.isBlank()) {
+            return limits;
+        }
+        for (String part : raw.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) {
+                continue;
+            }
+            ModelFamily family = ModelFamily.parse(kv[0]);
+            if (family != null) {
+                limits.put(family, Integer.parseInt(kv[1].trim()));
+            }
+        }
+        return limits;
+    }
 }
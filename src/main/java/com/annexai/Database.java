@@ -4,13 +4,56 @@ import java.io.File;
 import java.sql.*;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class Database {
+    private static final int READ_CONNECTIONS = 4;
+    private static final int USER_CACHE_SIZE = 10_000;
+    private static final long LEDGER_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final List<String> INDEXES = List.of(
+            "CREATE INDEX IF NOT EXISTS idx_model_usage_user_model ON model_usage(user_id, model)",
+            "CREATE INDEX IF NOT EXISTS idx_gemini_messages_user_id ON gemini_messages(user_id, id)",
+            "CREATE INDEX IF NOT EXISTS idx_gemini_messages_user_role ON gemini_messages(user_id, role)",
+            "CREATE INDEX IF NOT EXISTS idx_pending_images_user_created ON pending_images(user_id, created_at)",
+            "CREATE INDEX IF NOT EXISTS idx_payments_user_status_updated ON payments(user_id, status, updated_at)",
+            "CREATE INDEX IF NOT EXISTS idx_subscriptions_user ON subscriptions(user_id)",
+            "CREATE INDEX IF NOT EXISTS idx_subscriptions_status_expires ON subscriptions(status, expires_at)",
+            "CREATE INDEX IF NOT EXISTS idx_users_referrer_created ON users(referrer_id, created_at)",
+            "CREATE INDEX IF NOT EXISTS idx_promo_codes_unused ON promo_codes(is_used, created_at)"
+    );
+    private static final List<String> PLAN_CHECKED_QUERIES = List.of(
+            "SELECT model, SUM(tokens) as total FROM model_usage WHERE user_id = ? GROUP BY model",
+            "SELECT role, content, created_at FROM gemini_messages WHERE user_id = ? ORDER BY id DESC LIMIT ?",
+            "SELECT COUNT(*) as cnt FROM gemini_messages WHERE user_id = ? AND role = 'user'",
+            "DELETE FROM gemini_messages WHERE user_id = ?",
+            "SELECT p.id, p.file_id, p.file_unique_id, u.url FROM pending_images p LEFT JOIN uploaded_files u ON u.file_unique_id = p.file_unique_id AND u.expires_at > ? WHERE p.user_id = ? ORDER BY p.created_at ASC",
+            "SELECT COUNT(*) AS cnt FROM pending_images WHERE user_id = ?",
+            "DELETE FROM pending_images WHERE id IN (SELECT id FROM pending_images WHERE user_id = ? ORDER BY created_at ASC LIMIT ?)",
+            "DELETE FROM pending_images WHERE user_id = ?",
+            "SELECT id, user_id, provider_payment_charge_id, telegram_payment_charge_id, payload, amount_rub, tokens, status, created_at, updated_at, receipt_email, description FROM payments WHERE user_id = ? AND status = 'succeeded' ORDER BY updated_at DESC",
+            "SELECT 1 FROM payments WHERE user_id = ? AND status = 'succeeded' LIMIT 1",
+            "SELECT COUNT(*) AS cnt FROM subscriptions WHERE status = 'active' AND (expires_at IS NULL OR expires_at > ?)",
+            "SELECT COUNT(*) AS cnt FROM users WHERE referrer_id = ?",
+            "SELECT tg_id, username, first_name FROM users WHERE referrer_id = ? ORDER BY created_at DESC LIMIT ?",
+            "SELECT code, tokens, created_at FROM promo_codes WHERE is_used = 0 ORDER BY created_at DESC LIMIT ?",
+            "SELECT state, data, updated_at FROM pending_actions WHERE user_id = ?"
+    );
+
     private final String dbPath;
+    private final SqliteConnectionPool pool;
+    private final GroupCommitWriter writes;
+    private final UserCache userCache = new UserCache(USER_CACHE_SIZE);
+    private final Object ledgerCheckLock = new Object();
+    private long ledgerMismatches;
+    private long ledgerCheckedAt;
+    private Thread backgroundMigrations;
 
     public Database(String dbPath) {
         this.dbPath = dbPath;
+        this.pool = new SqliteConnectionPool(dbPath, READ_CONNECTIONS);
+        this.writes = new GroupCommitWriter(pool);
     }
 
     public void init() {
@@ -19,8 +62,28 @@ public class Database {
         if (parent != null && !parent.exists()) {
             parent.mkdirs();
         }
-        try (Connection conn = connect(); Statement st = conn.createStatement()) {
+        SchemaMigrator migrator = new SchemaMigrator(pool)
+                .step(1, "base tables", this::createBaseTables)
+                .step(2, "columns added after launch", this::addLateColumns)
+                .backgroundStep(3, "per-user indexes", indexBuilder())
+                .step(4, "token ledger and reservations", this::createTokenLedger)
+                .step(5, "generation jobs", this::createGenerationJobs)
+                .step(6, "uploaded file cache", this::createUploadedFiles)
+                .step(7, "generation job requests", this::addGenerationJobRequests);
+        try {
+            migrator.migrate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to init DB", e);
+        }
+        releaseStaleReservations();
+        backgroundMigrations = migrator.migrateInBackground(() -> {
+            checkQueryPlans();
+            purgeExpiredUploads();
+        });
+    }
 
+    private void createBaseTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
             st.execute("""
                 CREATE TABLE IF NOT EXISTS users (
                     tg_id INTEGER PRIMARY KEY,
@@ -87,99 +150,6 @@ public class Database {
                 )
             """);
 
-            try {
-                st.execute("ALTER TABLE payments ADD COLUMN provider_payment_charge_id TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE payments ADD COLUMN telegram_payment_charge_id TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE payments ADD COLUMN payload TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN aspect_ratio TEXT");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN welcome_bonus_given INTEGER NOT NULL DEFAULT 0");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN nano_warned INTEGER NOT NULL DEFAULT 0");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN midjourney_raw_enabled INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN midjourney_translate_enabled INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN ideogram_speed TEXT NOT NULL DEFAULT 'balanced'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN ideogram_style TEXT NOT NULL DEFAULT 'auto'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN ideogram_image_size TEXT NOT NULL DEFAULT 'square_hd'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN ideogram_expand_prompt INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN gemini_history_enabled INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN gemini_show_cost_enabled INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN kling_duration INTEGER NOT NULL DEFAULT 3");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN kling_aspect_ratio TEXT NOT NULL DEFAULT '16:9'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN kling_audio_enabled INTEGER NOT NULL DEFAULT 0");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN kling_mode TEXT NOT NULL DEFAULT 'std'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN kling_translate_enabled INTEGER NOT NULL DEFAULT 1");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN sora_duration INTEGER NOT NULL DEFAULT 10");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN sora_aspect_ratio TEXT NOT NULL DEFAULT 'landscape'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN veo_mode TEXT NOT NULL DEFAULT 'fast'");
-            } catch (SQLException ignored) {
-            }
-            try {
-                st.execute("ALTER TABLE users ADD COLUMN veo_aspect_ratio TEXT NOT NULL DEFAULT '16:9'");
-            } catch (SQLException ignored) {
-            }
-
             st.execute("""
                 CREATE TABLE IF NOT EXISTS promo_codes (
                     code TEXT PRIMARY KEY,
@@ -227,27 +197,205 @@ public class Database {
                     created_at TEXT NOT NULL
                 )
             """);
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to init DB", e);
         }
     }
 
-    private Connection connect() throws SQLException {
-        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    private void addLateColumns(Connection conn) throws SQLException {
+        String[][] columns = {
+                {"payments", "provider_payment_charge_id", "TEXT"},
+                {"payments", "telegram_payment_charge_id", "TEXT"},
+                {"payments", "payload", "TEXT"},
+                {"model_usage", "duration_ms", "INTEGER"},
+                {"users", "aspect_ratio", "TEXT"},
+                {"users", "welcome_bonus_given", "INTEGER NOT NULL DEFAULT 0"},
+                {"users", "nano_warned", "INTEGER NOT NULL DEFAULT 0"},
+                {"users", "midjourney_raw_enabled", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "midjourney_translate_enabled", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "ideogram_speed", "TEXT NOT NULL DEFAULT 'balanced'"},
+                {"users", "ideogram_style", "TEXT NOT NULL DEFAULT 'auto'"},
+                {"users", "ideogram_image_size", "TEXT NOT NULL DEFAULT 'square_hd'"},
+                {"users", "ideogram_expand_prompt", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "gemini_history_enabled", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "gemini_show_cost_enabled", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "kling_duration", "INTEGER NOT NULL DEFAULT 3"},
+                {"users", "kling_aspect_ratio", "TEXT NOT NULL DEFAULT '16:9'"},
+                {"users", "kling_audio_enabled", "INTEGER NOT NULL DEFAULT 0"},
+                {"users", "kling_mode", "TEXT NOT NULL DEFAULT 'std'"},
+                {"users", "kling_translate_enabled", "INTEGER NOT NULL DEFAULT 1"},
+                {"users", "sora_duration", "INTEGER NOT NULL DEFAULT 10"},
+                {"users", "sora_aspect_ratio", "TEXT NOT NULL DEFAULT 'landscape'"},
+                {"users", "veo_mode", "TEXT NOT NULL DEFAULT 'fast'"},
+                {"users", "veo_aspect_ratio", "TEXT NOT NULL DEFAULT '16:9'"}
+        };
+        Map<String, Set<String>> existing = new HashMap<>();
+        try (Statement st = conn.createStatement()) {
+            for (String[] column : columns) {
+                Set<String> present = existing.get(column[0]);
+                if (present == null) {
+                    present = SchemaMigrator.columns(conn, column[0]);
+                    existing.put(column[0], present);
+                }
+                if (present.add(column[1])) {
+                    st.execute("ALTER TABLE " + column[0] + " ADD COLUMN " + column[1] + " " + column[2]);
+                }
+            }
+        }
+    }
+
+    private void createTokenLedger(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS token_ledger (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    user_id INTEGER NOT NULL,
+                    delta INTEGER NOT NULL,
+                    balance_after INTEGER NOT NULL,
+                    reason TEXT NOT NULL,
+                    reservation_id INTEGER,
+                    created_at TEXT NOT NULL
+                )
+            """);
+
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS token_reservations (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    user_id INTEGER NOT NULL,
+                    model TEXT NOT NULL,
+                    amount INTEGER NOT NULL,
+                    state TEXT NOT NULL,
+                    created_at TEXT NOT NULL,
+                    settled_at TEXT
+                )
+            """);
+
+            st.execute("CREATE INDEX IF NOT EXISTS idx_token_ledger_user ON token_ledger(user_id, id)");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_token_reservations_state ON token_reservations(state)");
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO token_ledger (user_id, delta, balance_after, reason, created_at) " +
+                        "SELECT tg_id, balance, balance, 'opening balance', ? FROM users")) {
+            ps.setString(1, now());
+            ps.executeUpdate();
+        }
+    }
+
+    private void createGenerationJobs(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS generation_jobs (
+                    reservation_id INTEGER PRIMARY KEY,
+                    user_id INTEGER NOT NULL,
+                    chat_id INTEGER NOT NULL,
+                    model TEXT NOT NULL,
+                    cost INTEGER NOT NULL,
+                    task_id TEXT,
+                    task_kind TEXT,
+                    state TEXT NOT NULL,
+                    created_at TEXT NOT NULL,
+                    updated_at TEXT NOT NULL
+                )
+            """);
+
+            st.execute("CREATE INDEX IF NOT EXISTS idx_generation_jobs_state ON generation_jobs(state)");
+        }
+    }
+
+    private void addGenerationJobRequests(Connection conn) throws SQLException {
+        if (!SchemaMigrator.columns(conn, "generation_jobs").contains("request")) {
+            try (Statement st = conn.createStatement()) {
+                st.execute("ALTER TABLE generation_jobs ADD COLUMN request TEXT");
+            }
+        }
+    }
+
+    private void createUploadedFiles(Connection conn) throws SQLException {
         try (Statement st = conn.createStatement()) {
-            st.execute("PRAGMA foreign_keys=ON");
-            st.execute("PRAGMA journal_mode=WAL");
-            st.execute("PRAGMA synchronous=NORMAL");
-            st.execute("PRAGMA busy_timeout=5000");
+            if (!SchemaMigrator.columns(conn, "pending_images").contains("file_unique_id")) {
+                st.execute("ALTER TABLE pending_images ADD COLUMN file_unique_id TEXT");
+            }
+
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS uploaded_files (
+                    file_unique_id TEXT PRIMARY KEY,
+                    url TEXT NOT NULL,
+                    uploaded_at TEXT NOT NULL,
+                    expires_at INTEGER NOT NULL
+                )
+            """);
+        }
+    }
+
+    private SchemaMigrator.Chunk indexBuilder() {
+        int[] next = {0};
+        return conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.execute(INDEXES.get(next[0]++));
+            }
+            return next[0] < INDEXES.size();
+        };
+    }
+
+    private void checkQueryPlans() {
+        try {
+            for (String scan : fullScans()) {
+                System.out.println("Query plan falls back to a full scan: " + scan);
+            }
+        } catch (SQLException e) {
+            System.out.println("Query plan check failed: " + e.getMessage());
+        }
+    }
+
+    List<String> fullScans() throws SQLException {
+        List<String> scans = new ArrayList<>();
+        try (Connection conn = connectReadOnly(); Statement schema = conn.createStatement()) {
+            try (ResultSet rs = schema.executeQuery("SELECT COUNT(*) FROM sqlite_master")) {
+                rs.next();
+            }
+            for (String sql : PLAN_CHECKED_QUERIES) {
+                try (Statement st = conn.createStatement();
+                     ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN " + sql)) {
+                    while (rs.next()) {
+                        String detail = rs.getString("detail");
+                        if (detail != null && detail.startsWith("SCAN ")) {
+                            scans.add("(" + detail + ") " + sql);
+                        }
+                    }
+                }
+            }
         }
-        return conn;
+        return scans;
+    }
+
+    public void flush() {
+        writes.flush();
+    }
+
+    public void close() {
+        if (backgroundMigrations != null) {
+            backgroundMigrations.interrupt();
+            try {
+                backgroundMigrations.join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writes.close();
+        pool.close();
+    }
+
+    private Connection connect() throws SQLException {
+        return pool.writer();
+    }
+
+    private Connection connectReadOnly() throws SQLException {
+        return pool.reader();
     }
 
     private static String now() {
         return OffsetDateTime.now().toString();
     }
 
-    public synchronized User getOrCreateUser(long tgId, String username, String firstName, String lastName, Long referrerId) {
+    public User getOrCreateUser(long tgId, String username, String firstName, String lastName, Long referrerId) {
         User existing = getUser(tgId);
         if (existing != null) {
             boolean needUpdate = false;
@@ -270,29 +418,52 @@ public class Database {
         }
 
         String created = now();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO users (tg_id, username, first_name, last_name, balance, spent, created_at, updated_at, referrer_id, referral_earned, current_model, output_format, resolution, aspect_ratio, welcome_bonus_given, nano_warned, midjourney_raw_enabled, midjourney_translate_enabled, ideogram_speed, ideogram_style, ideogram_image_size, ideogram_expand_prompt, gemini_history_enabled, gemini_show_cost_enabled, kling_duration, kling_aspect_ratio, kling_audio_enabled, kling_mode, kling_translate_enabled, sora_duration, sora_aspect_ratio, veo_mode, veo_aspect_ratio) " +
-                        "VALUES (?, ?, ?, ?, 10000, 0, ?, ?, ?, 0, NULL, 'auto', '2k', 'auto', 1, 0, 1, 1, 'balanced', 'auto', 'square_hd', 1, 1, 1, 3, '16:9', 0, 'std', 1, 10, 'landscape', 'fast', '16:9')")) {
-            ps.setLong(1, tgId);
-            ps.setString(2, username);
-            ps.setString(3, firstName);
-            ps.setString(4, lastName);
-            ps.setString(5, created);
-            ps.setString(6, created);
-            if (referrerId == null) {
-                ps.setNull(7, Types.BIGINT);
-            } else {
-                ps.setLong(7, referrerId);
-            }
-            ps.executeUpdate();
+        try {
+            inTransaction(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "INSERT OR IGNORE INTO users (tg_id, username, first_name, last_name, balance, spent, created_at, updated_at, referrer_id, referral_earned, current_model, output_format, resolution, aspect_ratio, welcome_bonus_given, nano_warned, midjourney_raw_enabled, midjourney_translate_enabled, ideogram_speed, ideogram_style, ideogram_image_size, ideogram_expand_prompt, gemini_history_enabled, gemini_show_cost_enabled, kling_duration, kling_aspect_ratio, kling_audio_enabled, kling_mode, kling_translate_enabled, sora_duration, sora_aspect_ratio, veo_mode, veo_aspect_ratio) " +
+                                "VALUES (?, ?, ?, ?, 10000, 0, ?, ?, ?, 0, NULL, 'auto', '2k', 'auto', 1, 0, 1, 1, 'balanced', 'auto', 'square_hd', 1, 1, 1, 3, '16:9', 0, 'std', 1, 10, 'landscape', 'fast', '16:9')")) {
+                    ps.setLong(1, tgId);
+                    ps.setString(2, username);
+                    ps.setString(3, firstName);
+                    ps.setString(4, lastName);
+                    ps.setString(5, created);
+                    ps.setString(6, created);
+                    if (referrerId == null) {
+                        ps.setNull(7, Types.BIGINT);
+                    } else {
+                        ps.setLong(7, referrerId);
+                    }
+                    if (ps.executeUpdate() > 0) {
+                        appendLedger(conn, tgId, 10_000, 10_000, "welcome bonus", null);
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             throw new IllegalStateException("Failed to create user", e);
         }
         return getUser(tgId);
     }
 
-    public synchronized User getUser(long tgId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public User getUser(long tgId) {
+        long stamp = userCache.stamp(tgId);
+        writes.awaitUser(tgId);
+        User cached = userCache.get(tgId);
+        if (cached != null) {
+            return cached;
+        }
+        User user = loadUser(tgId);
+        userCache.putIfUnchanged(user, stamp);
+        return user;
+    }
+
+    public String userCacheStats() {
+        return userCache.stats();
+    }
+
+    private User loadUser(long tgId) {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT tg_id, username, first_name, last_name, balance, spent, created_at, updated_at, referrer_id, referral_earned, receipt_email, current_model, output_format, resolution, aspect_ratio, welcome_bonus_given, nano_warned, midjourney_raw_enabled, midjourney_translate_enabled, ideogram_speed, ideogram_style, ideogram_image_size, ideogram_expand_prompt, gemini_history_enabled, gemini_show_cost_enabled, kling_duration, kling_aspect_ratio, kling_audio_enabled, kling_mode, kling_translate_enabled, sora_duration, sora_aspect_ratio, veo_mode, veo_aspect_ratio FROM users WHERE tg_id = ?")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -345,137 +516,142 @@ public class Database {
     }
 
     private void updateUserNames(User user) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "UPDATE users SET username = ?, first_name = ?, last_name = ?, updated_at = ? WHERE tg_id = ?")) {
-            ps.setString(1, user.username);
-            ps.setString(2, user.firstName);
-            ps.setString(3, user.lastName);
-            ps.setString(4, now());
-            ps.setLong(5, user.tgId);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to update user names", e);
-        }
+        String username = user.username;
+        String firstName = user.firstName;
+        String lastName = user.lastName;
+        String updated = now();
+        submitUserWrite(user.tgId, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET username = ?, first_name = ?, last_name = ?, updated_at = ? WHERE tg_id = ?")) {
+                ps.setString(1, username);
+                ps.setString(2, firstName);
+                ps.setString(3, lastName);
+                ps.setString(4, updated);
+                ps.setLong(5, user.tgId);
+                ps.executeUpdate();
+            }
+        }, "Failed to update user names", u -> {
+            u.username = username;
+            u.firstName = firstName;
+            u.lastName = lastName;
+            u.updatedAt = updated;
+        });
     }
 
-    public synchronized void setCurrentModel(long tgId, String model) {
-        updateUserField(tgId, "current_model", model);
+    public void setCurrentModel(long tgId, String model) {
+        updateUserField(tgId, "current_model", model, u -> u.currentModel = model);
     }
 
-    public synchronized void setReceiptEmail(long tgId, String email) {
-        updateUserField(tgId, "receipt_email", email);
+    public void setReceiptEmail(long tgId, String email) {
+        updateUserField(tgId, "receipt_email", email, u -> u.receiptEmail = email);
     }
 
-    public synchronized void setOutputFormat(long tgId, String format) {
-        updateUserField(tgId, "output_format", format);
+    public void setOutputFormat(long tgId, String format) {
+        updateUserField(tgId, "output_format", format, u -> u.outputFormat = format);
     }
 
-    public synchronized void setResolution(long tgId, String resolution) {
-        updateUserField(tgId, "resolution", resolution);
+    public void setResolution(long tgId, String resolution) {
+        updateUserField(tgId, "resolution", resolution, u -> u.resolution = resolution);
     }
 
-    public synchronized void setAspectRatio(long tgId, String ratio) {
-        updateUserField(tgId, "aspect_ratio", ratio);
+    public void setAspectRatio(long tgId, String ratio) {
+        updateUserField(tgId, "aspect_ratio", ratio, u -> u.aspectRatio = ratio);
     }
 
-    public synchronized void setMidjourneyRawEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "midjourney_raw_enabled", enabled ? "1" : "0");
+    public void setMidjourneyRawEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "midjourney_raw_enabled", enabled ? "1" : "0", u -> u.midjourneyRawEnabled = enabled);
     }
 
-    public synchronized void setMidjourneyTranslateEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "midjourney_translate_enabled", enabled ? "1" : "0");
+    public void setMidjourneyTranslateEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "midjourney_translate_enabled", enabled ? "1" : "0", u -> u.midjourneyTranslateEnabled = enabled);
     }
 
-    public synchronized void setIdeogramSpeed(long tgId, String speed) {
-        updateUserField(tgId, "ideogram_speed", speed);
+    public void setIdeogramSpeed(long tgId, String speed) {
+        updateUserField(tgId, "ideogram_speed", speed, u -> u.ideogramSpeed = speed);
     }
 
-    public synchronized void setIdeogramStyle(long tgId, String style) {
-        updateUserField(tgId, "ideogram_style", style);
+    public void setIdeogramStyle(long tgId, String style) {
+        updateUserField(tgId, "ideogram_style", style, u -> u.ideogramStyle = style);
     }
 
-    public synchronized void setIdeogramImageSize(long tgId, String size) {
-        updateUserField(tgId, "ideogram_image_size", size);
+    public void setIdeogramImageSize(long tgId, String size) {
+        updateUserField(tgId, "ideogram_image_size", size, u -> u.ideogramImageSize = size);
     }
 
-    public synchronized void setIdeogramExpandPrompt(long tgId, boolean enabled) {
-        updateUserField(tgId, "ideogram_expand_prompt", enabled ? "1" : "0");
+    public void setIdeogramExpandPrompt(long tgId, boolean enabled) {
+        updateUserField(tgId, "ideogram_expand_prompt", enabled ? "1" : "0", u -> u.ideogramExpandPrompt = enabled);
     }
 
-    public synchronized void setGeminiHistoryEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "gemini_history_enabled", enabled ? "1" : "0");
+    public void setGeminiHistoryEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "gemini_history_enabled", enabled ? "1" : "0", u -> u.geminiHistoryEnabled = enabled);
     }
 
-    public synchronized void setGeminiShowCostEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "gemini_show_cost_enabled", enabled ? "1" : "0");
+    public void setGeminiShowCostEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "gemini_show_cost_enabled", enabled ? "1" : "0", u -> u.geminiShowCostEnabled = enabled);
     }
 
-    public synchronized void setKlingDuration(long tgId, int seconds) {
-        updateUserField(tgId, "kling_duration", String.valueOf(seconds));
+    public void setKlingDuration(long tgId, int seconds) {
+        updateUserField(tgId, "kling_duration", String.valueOf(seconds), u -> u.klingDuration = seconds);
     }
 
-    public synchronized void setKlingAspectRatio(long tgId, String ratio) {
-        updateUserField(tgId, "kling_aspect_ratio", ratio);
+    public void setKlingAspectRatio(long tgId, String ratio) {
+        updateUserField(tgId, "kling_aspect_ratio", ratio, u -> u.klingAspectRatio = ratio);
     }
 
-    public synchronized void setKlingAudioEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "kling_audio_enabled", enabled ? "1" : "0");
+    public void setKlingAudioEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "kling_audio_enabled", enabled ? "1" : "0", u -> u.klingAudioEnabled = enabled);
     }
 
-    public synchronized void setKlingMode(long tgId, String mode) {
-        updateUserField(tgId, "kling_mode", mode);
+    public void setKlingMode(long tgId, String mode) {
+        updateUserField(tgId, "kling_mode", mode, u -> u.klingMode = mode);
     }
 
-    public synchronized void setKlingTranslateEnabled(long tgId, boolean enabled) {
-        updateUserField(tgId, "kling_translate_enabled", enabled ? "1" : "0");
+    public void setKlingTranslateEnabled(long tgId, boolean enabled) {
+        updateUserField(tgId, "kling_translate_enabled", enabled ? "1" : "0", u -> u.klingTranslateEnabled = enabled);
     }
 
-    public synchronized void setSoraDuration(long tgId, int seconds) {
-        updateUserField(tgId, "sora_duration", String.valueOf(seconds));
+    public void setSoraDuration(long tgId, int seconds) {
+        updateUserField(tgId, "sora_duration", String.valueOf(seconds), u -> u.soraDuration = seconds);
     }
 
-    public synchronized void setSoraAspectRatio(long tgId, String ratio) {
-        updateUserField(tgId, "sora_aspect_ratio", ratio);
+    public void setSoraAspectRatio(long tgId, String ratio) {
+        updateUserField(tgId, "sora_aspect_ratio", ratio, u -> u.soraAspectRatio = ratio);
     }
 
-    public synchronized void setVeoMode(long tgId, String mode) {
-        updateUserField(tgId, "veo_mode", mode);
+    public void setVeoMode(long tgId, String mode) {
+        updateUserField(tgId, "veo_mode", mode, u -> u.veoMode = mode);
     }
 
-    public synchronized void setVeoAspectRatio(long tgId, String ratio) {
-        updateUserField(tgId, "veo_aspect_ratio", ratio);
+    public void setVeoAspectRatio(long tgId, String ratio) {
+        updateUserField(tgId, "veo_aspect_ratio", ratio, u -> u.veoAspectRatio = ratio);
     }
 
-    public synchronized boolean ensureWelcomeBonus(long tgId) {
-        try (Connection conn = connect();
-             PreparedStatement sel = conn.prepareStatement("SELECT welcome_bonus_given FROM users WHERE tg_id = ?")) {
-            sel.setLong(1, tgId);
-            try (ResultSet rs = sel.executeQuery()) {
-                if (!rs.next()) {
-                    return false;
-                }
-                if (rs.getInt("welcome_bonus_given") == 1) {
-                    return false;
-                }
-            }
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to read welcome bonus flag", e);
+    public boolean ensureWelcomeBonus(long tgId) {
+        User user = getUser(tgId);
+        if (user == null || user.welcomeBonusGiven) {
+            return false;
         }
 
-        final int[] rows = {0};
-        runWithRetry(() -> {
-            try (Connection conn = connect();
-                 PreparedStatement upd = conn.prepareStatement(
-                         "UPDATE users SET balance = balance + 10000, welcome_bonus_given = 1, updated_at = ? WHERE tg_id = ? AND welcome_bonus_given = 0")) {
+        final boolean[] applied = {false};
+        runUserTransaction(tgId, () -> inTransaction(conn -> {
+            try (PreparedStatement upd = conn.prepareStatement(
+                    "UPDATE users SET balance = balance + 10000, welcome_bonus_given = 1, updated_at = ? WHERE tg_id = ? AND welcome_bonus_given = 0 RETURNING balance")) {
                 upd.setString(1, now());
                 upd.setLong(2, tgId);
-                rows[0] = upd.executeUpdate();
+                try (ResultSet rs = upd.executeQuery()) {
+                    if (rs.next()) {
+                        long balance = rs.getLong("balance");
+                        appendLedger(conn, tgId, 10_000, balance, "welcome bonus", null);
+                        applied[0] = true;
+                    }
+                }
             }
-        }, "Failed to apply welcome bonus");
-        return rows[0] > 0;
+            return null;
+        }), "Failed to apply welcome bonus");
+        return applied[0];
     }
 
-    public synchronized boolean markNanoWarnedIfNeeded(long tgId) {
+    public boolean markNanoWarnedIfNeeded(long tgId) {
         final int[] rows = {0};
         runWithRetry(() -> {
             try (Connection conn = connect();
@@ -486,28 +662,33 @@ public class Database {
                 rows[0] = upd.executeUpdate();
             }
         }, "Failed to update nano warning flag");
+        if (rows[0] > 0) {
+            userCache.update(tgId, u -> u.nanoWarned = true);
+        }
         return rows[0] > 0;
     }
 
-    public synchronized void addGeminiMessage(long userId, String role, String content) {
+    public void addGeminiMessage(long userId, String role, String content) {
         if (content == null || content.isBlank()) {
             return;
         }
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO gemini_messages (user_id, role, content, created_at) VALUES (?, ?, ?, ?)")) {
-            ps.setLong(1, userId);
-            ps.setString(2, role);
-            ps.setString(3, content);
-            ps.setString(4, now());
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add gemini message", e);
-        }
+        String created = now();
+        writes.submit(userId, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO gemini_messages (user_id, role, content, created_at) VALUES (?, ?, ?, ?)")) {
+                ps.setLong(1, userId);
+                ps.setString(2, role);
+                ps.setString(3, content);
+                ps.setString(4, created);
+                ps.executeUpdate();
+            }
+        }, "Failed to add gemini message");
     }
 
-    public synchronized List<GeminiMessage> listGeminiMessages(long userId, int limit) {
+    public List<GeminiMessage> listGeminiMessages(long userId, int limit) {
+        writes.awaitUser(userId);
         List<GeminiMessage> list = new ArrayList<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT role, content, created_at FROM gemini_messages WHERE user_id = ? ORDER BY id DESC LIMIT ?")) {
             ps.setLong(1, userId);
             ps.setInt(2, limit);
@@ -527,7 +708,8 @@ public class Database {
         return list;
     }
 
-    public synchronized void clearGeminiMessages(long userId) {
+    public void clearGeminiMessages(long userId) {
+        writes.awaitUser(userId);
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "DELETE FROM gemini_messages WHERE user_id = ?")) {
             ps.setLong(1, userId);
@@ -537,8 +719,9 @@ public class Database {
         }
     }
 
-    public synchronized int countGeminiUserMessages(long userId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public int countGeminiUserMessages(long userId) {
+        writes.awaitUser(userId);
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT COUNT(*) as cnt FROM gemini_messages WHERE user_id = ? AND role = 'user'")) {
             ps.setLong(1, userId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -552,53 +735,283 @@ public class Database {
         return 0;
     }
 
-    private void updateUserField(long tgId, String field, String value) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "UPDATE users SET " + field + " = ?, updated_at = ? WHERE tg_id = ?")) {
-            ps.setString(1, value);
-            ps.setString(2, now());
-            ps.setLong(3, tgId);
-            ps.executeUpdate();
+    private void updateUserField(long tgId, String field, String value, Consumer<User> apply) {
+        String updated = now();
+        submitUserWrite(tgId, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET " + field + " = ?, updated_at = ? WHERE tg_id = ?")) {
+                ps.setString(1, value);
+                ps.setString(2, updated);
+                ps.setLong(3, tgId);
+                ps.executeUpdate();
+            }
+        }, "Failed to update user field " + field, u -> {
+            apply.accept(u);
+            u.updatedAt = updated;
+        });
+    }
+
+    public void addBalance(long tgId, long delta, String reason) {
+        writes.awaitUser(tgId);
+        runUserTransaction(tgId, () -> inTransaction(conn -> {
+            changeBalance(conn, tgId, delta, reason, null);
+            return null;
+        }), "Failed to update balance");
+    }
+
+    public Long reserveTokens(long tgId, long amount, String model) {
+        writes.awaitUser(tgId);
+        final Long[] reservation = {null};
+        runUserTransaction(tgId, () -> reservation[0] = inTransaction(conn -> {
+            long balance;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET balance = balance - ?, updated_at = ? WHERE tg_id = ? AND balance >= ? RETURNING balance")) {
+                ps.setLong(1, amount);
+                ps.setString(2, now());
+                ps.setLong(3, tgId);
+                ps.setLong(4, amount);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    balance = rs.getLong("balance");
+                }
+            }
+            long id;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO token_reservations (user_id, model, amount, state, created_at) VALUES (?, ?, ?, 'reserved', ?) RETURNING id")) {
+                ps.setLong(1, tgId);
+                ps.setString(2, model);
+                ps.setLong(3, amount);
+                ps.setString(4, now());
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    id = rs.getLong("id");
+                }
+            }
+            appendLedger(conn, tgId, -amount, balance, "reserve", id);
+            return id;
+        }), "Failed to reserve tokens");
+        return reservation[0];
+    }
+
+    public void commitReservation(long tgId, long reservationId, Long durationMs) {
+        writes.awaitUser(tgId);
+        String settled = now();
+        runUserTransaction(tgId, () -> inTransaction(conn -> {
+            String model;
+            long amount;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE token_reservations SET state = 'committed', settled_at = ? WHERE id = ? AND state = 'reserved' RETURNING model, amount")) {
+                ps.setString(1, settled);
+                ps.setLong(2, reservationId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    model = rs.getString("model");
+                    amount = rs.getLong("amount");
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET spent = spent + ?, updated_at = ? WHERE tg_id = ?")) {
+                ps.setLong(1, amount);
+                ps.setString(2, settled);
+                ps.setLong(3, tgId);
+                ps.executeUpdate();
+            }
+            insertModelUsage(conn, tgId, model, amount, settled, durationMs);
+            settleGenerationJob(conn, reservationId, "completed", settled);
+            return null;
+        }), "Failed to commit token reservation");
+    }
+
+    public void releaseReservation(long tgId, long reservationId) {
+        writes.awaitUser(tgId);
+        runUserTransaction(tgId, () -> inTransaction(conn -> {
+            long amount;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE token_reservations SET state = 'released', settled_at = ? WHERE id = ? AND state = 'reserved' RETURNING amount")) {
+                ps.setString(1, now());
+                ps.setLong(2, reservationId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    amount = rs.getLong("amount");
+                }
+            }
+            changeBalance(conn, tgId, amount, "release", reservationId);
+            settleGenerationJob(conn, reservationId, "failed", now());
+            return null;
+        }), "Failed to release token reservation");
+    }
+
+    private void releaseStaleReservations() {
+        Map<Long, Long> stale = new LinkedHashMap<>();
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                "SELECT r.id, r.user_id FROM token_reservations r WHERE r.state = 'reserved' AND NOT EXISTS " +
+                        "(SELECT 1 FROM generation_jobs j WHERE j.reservation_id = r.id AND j.state = 'submitted')")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    stale.put(rs.getLong("id"), rs.getLong("user_id"));
+                }
+            }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to update user field " + field, e);
+            throw new IllegalStateException("Failed to read token reservations", e);
+        }
+        for (Map.Entry<Long, Long> entry : stale.entrySet()) {
+            releaseReservation(entry.getValue(), entry.getKey());
+        }
+        if (!stale.isEmpty()) {
+            System.out.println("Released " + stale.size() + " token reservations left over from the previous run");
         }
     }
 
-    public synchronized void addBalance(long tgId, long delta) {
+    public void createGenerationJob(long reservationId, long tgId, long chatId, String model, long cost) {
+        String created = now();
         runWithRetry(() -> {
             try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                    "UPDATE users SET balance = balance + ?, updated_at = ? WHERE tg_id = ?")) {
-                ps.setLong(1, delta);
-                ps.setString(2, now());
-                ps.setLong(3, tgId);
+                    "INSERT OR IGNORE INTO generation_jobs (reservation_id, user_id, chat_id, model, cost, state, created_at, updated_at) VALUES (?, ?, ?, ?, ?, 'queued', ?, ?)")) {
+                ps.setLong(1, reservationId);
+                ps.setLong(2, tgId);
+                ps.setLong(3, chatId);
+                ps.setString(4, model);
+                ps.setLong(5, cost);
+                ps.setString(6, created);
+                ps.setString(7, created);
                 ps.executeUpdate();
             }
-        }, "Failed to update balance");
+        }, "Failed to create generation job");
     }
 
-    public synchronized void addSpent(long tgId, long tokens) {
+    public void markGenerationJobSubmitted(long reservationId, String taskId, String taskKind) {
+        markGenerationJobSubmitted(reservationId, taskId, taskKind, null);
+    }
+
+    public void markGenerationJobSubmitted(long reservationId, String taskId, String taskKind, String request) {
+        String updated = now();
         runWithRetry(() -> {
             try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                    "UPDATE users SET spent = spent + ?, updated_at = ? WHERE tg_id = ?")) {
-                ps.setLong(1, tokens);
-                ps.setString(2, now());
-                ps.setLong(3, tgId);
+                    "UPDATE generation_jobs SET task_id = ?, task_kind = ?, request = ?, state = 'submitted', updated_at = ? WHERE reservation_id = ? AND state IN ('queued', 'submitted')")) {
+                ps.setString(1, taskId);
+                ps.setString(2, taskKind);
+                ps.setString(3, request);
+                ps.setString(4, updated);
+                ps.setLong(5, reservationId);
                 ps.executeUpdate();
             }
-        }, "Failed to update spent");
+        }, "Failed to update generation job");
     }
 
-    public synchronized void addReferralEarned(long tgId, long tokens) {
-        runWithRetry(() -> {
-            try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                    "UPDATE users SET referral_earned = referral_earned + ?, balance = balance + ?, updated_at = ? WHERE tg_id = ?")) {
+    public List<GenerationJob> listSubmittedGenerationJobs() {
+        List<GenerationJob> jobs = new ArrayList<>();
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                "SELECT j.reservation_id, j.user_id, j.chat_id, j.model, j.cost, j.task_id, j.task_kind, j.request, j.created_at FROM generation_jobs j " +
+                        "JOIN token_reservations r ON r.id = j.reservation_id " +
+                        "WHERE j.state = 'submitted' AND r.state = 'reserved' ORDER BY j.reservation_id")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    GenerationJob job = new GenerationJob();
+                    job.reservationId = rs.getLong("reservation_id");
+                    job.userId = rs.getLong("user_id");
+                    job.chatId = rs.getLong("chat_id");
+                    job.model = rs.getString("model");
+                    job.cost = rs.getLong("cost");
+                    job.taskId = rs.getString("task_id");
+                    job.taskKind = rs.getString("task_kind");
+                    job.request = rs.getString("request");
+                    job.createdAt = rs.getString("created_at");
+                    jobs.add(job);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to list generation jobs", e);
+        }
+        return jobs;
+    }
+
+    private void settleGenerationJob(Connection conn, long reservationId, String state, String updated) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "UPDATE generation_jobs SET state = ?, updated_at = ? WHERE reservation_id = ?")) {
+            ps.setString(1, state);
+            ps.setString(2, updated);
+            ps.setLong(3, reservationId);
+            ps.executeUpdate();
+        }
+    }
+
+    public long countLedgerMismatches() {
+        synchronized (ledgerCheckLock) {
+            long now = System.currentTimeMillis();
+            if (ledgerCheckedAt != 0 && now - ledgerCheckedAt < LEDGER_CHECK_INTERVAL_MILLIS) {
+                return ledgerMismatches;
+            }
+            try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                    "SELECT COUNT(*) AS cnt FROM users u " +
+                            "WHERE u.balance != COALESCE((SELECT SUM(l.delta) FROM token_ledger l WHERE l.user_id = u.tg_id), 0)")) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    ledgerMismatches = rs.next() ? rs.getLong("cnt") : 0;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to check token ledger", e);
+            }
+            ledgerCheckedAt = now;
+            if (ledgerMismatches > 0) {
+                System.out.println("Balance differs from token ledger for " + ledgerMismatches + " users");
+            }
+            return ledgerMismatches;
+        }
+    }
+
+    private void changeBalance(Connection conn, long tgId, long delta, String reason, Long reservationId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "UPDATE users SET balance = balance + ?, updated_at = ? WHERE tg_id = ? RETURNING balance")) {
+            ps.setLong(1, delta);
+            ps.setString(2, now());
+            ps.setLong(3, tgId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    appendLedger(conn, tgId, delta, rs.getLong("balance"), reason, reservationId);
+                }
+            }
+        }
+    }
+
+    private void appendLedger(Connection conn, long tgId, long delta, long balanceAfter, String reason, Long reservationId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO token_ledger (user_id, delta, balance_after, reason, reservation_id, created_at) VALUES (?, ?, ?, ?, ?, ?)")) {
+            ps.setLong(1, tgId);
+            ps.setLong(2, delta);
+            ps.setLong(3, balanceAfter);
+            ps.setString(4, reason);
+            if (reservationId == null) {
+                ps.setNull(5, Types.BIGINT);
+            } else {
+                ps.setLong(5, reservationId);
+            }
+            ps.setString(6, now());
+            ps.executeUpdate();
+        }
+    }
+
+    public void addReferralEarned(long tgId, long tokens) {
+        writes.awaitUser(tgId);
+        runUserTransaction(tgId, () -> inTransaction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE users SET referral_earned = referral_earned + ?, balance = balance + ?, updated_at = ? WHERE tg_id = ? RETURNING balance")) {
                 ps.setLong(1, tokens);
                 ps.setLong(2, tokens);
                 ps.setString(3, now());
                 ps.setLong(4, tgId);
-                ps.executeUpdate();
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        appendLedger(conn, tgId, tokens, rs.getLong("balance"), "referral bonus", null);
+                    }
+                }
             }
-        }, "Failed to update referral");
+            return null;
+        }), "Failed to update referral");
     }
 
     private void runWithRetry(SqlRunnable runnable, String errorMessage) {
@@ -617,6 +1030,14 @@ public class Database {
         }
     }
 
+    private void runUserTransaction(long tgId, SqlRunnable runnable, String errorMessage) {
+        try {
+            runWithRetry(runnable, errorMessage);
+        } finally {
+            userCache.invalidate(tgId);
+        }
+    }
+
     private boolean isBusy(SQLException e) {
         String msg = e.getMessage();
         return msg != null && msg.toLowerCase(Locale.ROOT).contains("database is locked");
@@ -630,27 +1051,88 @@ public class Database {
         }
     }
 
+    private CompletableFuture<Void> submitUserWrite(long tgId, GroupCommitWriter.Work work, String errorMessage,
+                                                    Consumer<User> change) {
+        CompletableFuture<Void> future = writes.submit(tgId, work, errorMessage, () -> userCache.update(tgId, change));
+        future.whenComplete((ignored, error) -> {
+            if (error != null) {
+                userCache.invalidate(tgId);
+            }
+        });
+        return future;
+    }
+
+    private <T> T inTransaction(SqlFunction<T> work) throws SQLException {
+        try (Connection conn = connect()) {
+            boolean outermost = conn.getAutoCommit();
+            if (outermost) {
+                conn.setAutoCommit(false);
+            }
+            try {
+                T result = work.apply(conn);
+                if (outermost) {
+                    conn.commit();
+                }
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                if (outermost) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                if (outermost) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
     @FunctionalInterface
     private interface SqlRunnable {
         void run() throws SQLException;
     }
 
-    public synchronized void recordModelUsage(long tgId, String model, long tokens) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO model_usage (user_id, model, tokens, created_at) VALUES (?, ?, ?, ?)")) {
+    @FunctionalInterface
+    private interface SqlFunction<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+
+    private void insertModelUsage(Connection conn, long tgId, String model, long tokens, String created, Long durationMs) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO model_usage (user_id, model, tokens, created_at, duration_ms) VALUES (?, ?, ?, ?, ?)")) {
             ps.setLong(1, tgId);
             ps.setString(2, model);
             ps.setLong(3, tokens);
-            ps.setString(4, now());
+            ps.setString(4, created);
+            if (durationMs == null) {
+                ps.setNull(5, Types.BIGINT);
+            } else {
+                ps.setLong(5, durationMs);
+            }
             ps.executeUpdate();
+        }
+    }
+
+    public Map<String, List<Long>> getRecentModelDurations(int limit) {
+        Map<String, List<Long>> durations = new HashMap<>();
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                "SELECT model, duration_ms FROM model_usage WHERE duration_ms IS NOT NULL ORDER BY id DESC LIMIT ?")) {
+            ps.setInt(1, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    durations.computeIfAbsent(rs.getString("model"), k -> new ArrayList<>()).add(rs.getLong("duration_ms"));
+                }
+            }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to record model usage", e);
+            throw new IllegalStateException("Failed to load model durations", e);
         }
+        return durations;
     }
 
-    public synchronized Map<String, Long> getModelUsageTotals(long tgId) {
+    public Map<String, Long> getModelUsageTotals(long tgId) {
+        writes.awaitUser(tgId);
         Map<String, Long> totals = new HashMap<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT model, SUM(tokens) as total FROM model_usage WHERE user_id = ? GROUP BY model")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -664,9 +1146,9 @@ public class Database {
         return totals;
     }
 
-    public synchronized Map<String, Long> getModelUsageCounts() {
+    public Map<String, Long> getModelUsageCounts() {
         Map<String, Long> totals = new HashMap<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT model, COUNT(*) as total FROM model_usage GROUP BY model")) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -679,14 +1161,14 @@ public class Database {
         return totals;
     }
 
-    public synchronized void upsertSuccessfulPayment(long tgId,
-                                                     String providerPaymentChargeId,
-                                                     String telegramPaymentChargeId,
-                                                     String payload,
-                                                     int amountRub,
-                                                     long tokens,
-                                                     String receiptEmail,
-                                                     String description) {
+    public void upsertSuccessfulPayment(long tgId,
+                                        String providerPaymentChargeId,
+                                        String telegramPaymentChargeId,
+                                        String payload,
+                                        int amountRub,
+                                        long tokens,
+                                        String receiptEmail,
+                                        String description) {
         String updated = now();
         try (Connection conn = connect(); PreparedStatement update = conn.prepareStatement(
                 "UPDATE payments SET telegram_payment_charge_id = ?, payload = ?, amount_rub = ?, tokens = ?, status = 'succeeded', updated_at = ?, receipt_email = ?, description = ? WHERE provider_payment_charge_id = ?")) {
@@ -728,9 +1210,9 @@ public class Database {
         }
     }
 
-    public synchronized List<Payment> listSuccessfulPayments(long tgId) {
+    public List<Payment> listSuccessfulPayments(long tgId) {
         List<Payment> list = new ArrayList<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT id, user_id, provider_payment_charge_id, telegram_payment_charge_id, payload, amount_rub, tokens, status, created_at, updated_at, receipt_email, description FROM payments WHERE user_id = ? AND status = 'succeeded' ORDER BY updated_at DESC")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -757,7 +1239,19 @@ public class Database {
         return list;
     }
 
-    public synchronized void createPromoCode(String code, long tokens) {
+    public boolean hasSuccessfulPayment(long tgId) {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                "SELECT 1 FROM payments WHERE user_id = ? AND status = 'succeeded' LIMIT 1")) {
+            ps.setLong(1, tgId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to check payments", e);
+        }
+    }
+
+    public void createPromoCode(String code, long tokens) {
         String normalized = code == null ? "" : code.trim().toUpperCase(Locale.ROOT);
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "INSERT INTO promo_codes (code, tokens, is_used, used_by, created_at, used_at) VALUES (?, ?, 0, NULL, ?, NULL)")) {
@@ -770,9 +1264,9 @@ public class Database {
         }
     }
 
-    public synchronized List<PromoCode> listActivePromoCodes(int limit) {
+    public List<PromoCode> listActivePromoCodes(int limit) {
         List<PromoCode> list = new ArrayList<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT code, tokens, created_at FROM promo_codes WHERE is_used = 0 ORDER BY created_at DESC LIMIT ?")) {
             ps.setInt(1, limit);
             try (ResultSet rs = ps.executeQuery()) {
@@ -790,39 +1284,48 @@ public class Database {
         return list;
     }
 
-    public synchronized PromoRedeemResult redeemPromo(long tgId, String code) {
+    public PromoRedeemResult redeemPromo(long tgId, String code) {
         if (code == null) {
             return PromoRedeemResult.NOT_FOUND;
         }
         String normalized = code.trim().toUpperCase(Locale.ROOT);
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "SELECT code, tokens, is_used FROM promo_codes WHERE code = ?")) {
-            ps.setString(1, normalized);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (!rs.next()) {
-                    return PromoRedeemResult.NOT_FOUND;
-                }
-                int isUsed = rs.getInt("is_used");
-                long tokens = rs.getLong("tokens");
-                if (isUsed == 1) {
-                    return PromoRedeemResult.ALREADY_USED;
+        writes.awaitUser(tgId);
+        try {
+            return inTransaction(conn -> {
+                long tokens;
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "SELECT code, tokens, is_used FROM promo_codes WHERE code = ?")) {
+                    ps.setString(1, normalized);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) {
+                            return PromoRedeemResult.NOT_FOUND;
+                        }
+                        if (rs.getInt("is_used") == 1) {
+                            return PromoRedeemResult.ALREADY_USED;
+                        }
+                        tokens = rs.getLong("tokens");
+                    }
                 }
                 try (PreparedStatement upd = conn.prepareStatement(
-                        "UPDATE promo_codes SET is_used = 1, used_by = ?, used_at = ? WHERE code = ?")) {
+                        "UPDATE promo_codes SET is_used = 1, used_by = ?, used_at = ? WHERE code = ? AND is_used = 0")) {
                     upd.setLong(1, tgId);
                     upd.setString(2, now());
                     upd.setString(3, normalized);
-                    upd.executeUpdate();
+                    if (upd.executeUpdate() == 0) {
+                        return PromoRedeemResult.ALREADY_USED;
+                    }
                 }
-                addBalance(tgId, tokens);
+                changeBalance(conn, tgId, tokens, "promo " + normalized, null);
                 return PromoRedeemResult.SUCCESS;
-            }
-        } catch (SQLException e) {
+            });
+        } catch (SQLException | RuntimeException e) {
             throw new IllegalStateException("Failed to redeem promo", e);
+        } finally {
+            userCache.invalidate(tgId);
         }
     }
 
-    public synchronized void setPendingAction(long tgId, String state, String data) {
+    public void setPendingAction(long tgId, String state, String data) {
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "INSERT INTO pending_actions (user_id, state, data, updated_at) VALUES (?, ?, ?, ?) " +
                         "ON CONFLICT(user_id) DO UPDATE SET state = excluded.state, data = excluded.data, updated_at = excluded.updated_at")) {
@@ -836,8 +1339,8 @@ public class Database {
         }
     }
 
-    public synchronized PendingAction getPendingAction(long tgId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public PendingAction getPendingAction(long tgId) {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT state, data, updated_at FROM pending_actions WHERE user_id = ?")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -855,7 +1358,7 @@ public class Database {
         return null;
     }
 
-    public synchronized void clearPendingAction(long tgId) {
+    public void clearPendingAction(long tgId) {
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "DELETE FROM pending_actions WHERE user_id = ?")) {
             ps.setLong(1, tgId);
@@ -865,21 +1368,23 @@ public class Database {
         }
     }
 
-    public synchronized void addPendingImage(long tgId, String fileId) {
-        addPendingImage(tgId, fileId, 10);
+    public void addPendingImage(long tgId, String fileId, String fileUniqueId) {
+        addPendingImage(tgId, fileId, fileUniqueId, 10);
     }
 
-    public synchronized void addPendingImage(long tgId, String fileId, int max) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO pending_images (user_id, file_id, created_at) VALUES (?, ?, ?)")) {
-            ps.setLong(1, tgId);
-            ps.setString(2, fileId);
-            ps.setString(3, now());
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new IllegalStateException("Failed to add pending image", e);
-        }
-        trimPendingImages(tgId, max);
+    public void addPendingImage(long tgId, String fileId, String fileUniqueId, int max) {
+        String created = now();
+        writes.submit(tgId, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO pending_images (user_id, file_id, file_unique_id, created_at) VALUES (?, ?, ?, ?)")) {
+                ps.setLong(1, tgId);
+                ps.setString(2, fileId);
+                ps.setString(3, fileUniqueId);
+                ps.setString(4, created);
+                ps.executeUpdate();
+            }
+            trimPendingImages(tgId, max);
+        }, "Failed to add pending image");
     }
 
     private void trimPendingImages(long tgId, int max) {
@@ -905,16 +1410,24 @@ public class Database {
         }
     }
 
-    public synchronized List<String> consumePendingImages(long tgId) {
-        List<String> list = new ArrayList<>();
+    public List<PendingImage> consumePendingImages(long tgId) {
+        writes.awaitUser(tgId);
+        List<PendingImage> list = new ArrayList<>();
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
-                "SELECT id, file_id FROM pending_images WHERE user_id = ? ORDER BY created_at ASC")) {
-            ps.setLong(1, tgId);
+                "SELECT p.id, p.file_id, p.file_unique_id, u.url FROM pending_images p " +
+                        "LEFT JOIN uploaded_files u ON u.file_unique_id = p.file_unique_id AND u.expires_at > ? " +
+                        "WHERE p.user_id = ? ORDER BY p.created_at ASC")) {
+            ps.setLong(1, System.currentTimeMillis());
+            ps.setLong(2, tgId);
             List<Long> ids = new ArrayList<>();
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     ids.add(rs.getLong("id"));
-                    list.add(rs.getString("file_id"));
+                    PendingImage image = new PendingImage();
+                    image.fileId = rs.getString("file_id");
+                    image.fileUniqueId = rs.getString("file_unique_id");
+                    image.uploadedUrl = rs.getString("url");
+                    list.add(image);
                 }
             }
             if (!ids.isEmpty()) {
@@ -930,7 +1443,46 @@ public class Database {
         return list;
     }
 
-    public synchronized void clearPendingImages(long tgId) {
+    public String findUploadedFile(String fileUniqueId) {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
+                "SELECT url FROM uploaded_files WHERE file_unique_id = ? AND expires_at > ?")) {
+            ps.setString(1, fileUniqueId);
+            ps.setLong(2, System.currentTimeMillis());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString("url") : null;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read uploaded file", e);
+        }
+    }
+
+    public void saveUploadedFile(String fileUniqueId, String url, long expiresAtMillis) {
+        String uploaded = now();
+        writes.submit(null, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO uploaded_files (file_unique_id, url, uploaded_at, expires_at) VALUES (?, ?, ?, ?) " +
+                            "ON CONFLICT(file_unique_id) DO UPDATE SET url = excluded.url, uploaded_at = excluded.uploaded_at, expires_at = excluded.expires_at")) {
+                ps.setString(1, fileUniqueId);
+                ps.setString(2, url);
+                ps.setString(3, uploaded);
+                ps.setLong(4, expiresAtMillis);
+                ps.executeUpdate();
+            }
+        }, "Failed to save uploaded file").handle((ignored, error) -> null).join();
+    }
+
+    private void purgeExpiredUploads() {
+        writes.submit(null, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "DELETE FROM uploaded_files WHERE expires_at <= ?")) {
+                ps.setLong(1, System.currentTimeMillis());
+                ps.executeUpdate();
+            }
+        }, "Failed to purge uploaded files");
+    }
+
+    public void clearPendingImages(long tgId) {
+        writes.awaitUser(tgId);
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "DELETE FROM pending_images WHERE user_id = ?")) {
             ps.setLong(1, tgId);
@@ -940,8 +1492,9 @@ public class Database {
         }
     }
 
-    public synchronized int countPendingImages(long tgId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public int countPendingImages(long tgId) {
+        writes.awaitUser(tgId);
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT COUNT(*) AS cnt FROM pending_images WHERE user_id = ?")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -955,8 +1508,8 @@ public class Database {
         return 0;
     }
 
-    public synchronized long countUsers() {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public long countUsers() {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT COUNT(*) AS cnt FROM users")) {
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -969,8 +1522,8 @@ public class Database {
         return 0;
     }
 
-    public synchronized long countActiveSubscriptions() {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public long countActiveSubscriptions() {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT COUNT(*) AS cnt FROM subscriptions WHERE status = 'active' AND (expires_at IS NULL OR expires_at > ?)")) {
             ps.setString(1, now());
             try (ResultSet rs = ps.executeQuery()) {
@@ -984,8 +1537,8 @@ public class Database {
         return 0;
     }
 
-    public synchronized long countReferrals(long tgId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+    public long countReferrals(long tgId) {
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT COUNT(*) AS cnt FROM users WHERE referrer_id = ?")) {
             ps.setLong(1, tgId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -999,9 +1552,9 @@ public class Database {
         return 0;
     }
 
-    public synchronized String listReferrals(long tgId, int limit) {
+    public String listReferrals(long tgId, int limit) {
         StringBuilder sb = new StringBuilder();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = connectReadOnly(); PreparedStatement ps = conn.prepareStatement(
                 "SELECT tg_id, username, first_name FROM users WHERE referrer_id = ? ORDER BY created_at DESC LIMIT ?")) {
             ps.setLong(1, tgId);
             ps.setInt(2, limit);
@@ -1032,16 +1585,21 @@ public class Database {
         return sb.toString().trim();
     }
 
-    public synchronized boolean setReferrerIfEmpty(long tgId, long referrerId) {
+    public boolean setReferrerIfEmpty(long tgId, long referrerId) {
+        boolean updated;
         try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(
                 "UPDATE users SET referrer_id = ? WHERE tg_id = ? AND referrer_id IS NULL AND tg_id <> ?")) {
             ps.setLong(1, referrerId);
             ps.setLong(2, tgId);
             ps.setLong(3, referrerId);
-            return ps.executeUpdate() > 0;
+            updated = ps.executeUpdate() > 0;
         } catch (SQLException e) {
             throw new IllegalStateException("Failed to set referrer", e);
         }
+        if (updated) {
+            userCache.invalidate(tgId);
+        }
+        return updated;
     }
 
     private boolean safeEquals(String a, String b) {
@@ -1092,6 +1650,45 @@ public class Database {
         public String soraAspectRatio;
         public String veoMode;
         public String veoAspectRatio;
+
+        User copy() {
+            User u = new User();
+            u.tgId = tgId;
+            u.username = username;
+            u.firstName = firstName;
+            u.lastName = lastName;
+            u.balance = balance;
+            u.spent = spent;
+            u.createdAt = createdAt;
+            u.updatedAt = updatedAt;
+            u.referrerId = referrerId;
+            u.referralEarned = referralEarned;
+            u.receiptEmail = receiptEmail;
+            u.currentModel = currentModel;
+            u.outputFormat = outputFormat;
+            u.resolution = resolution;
+            u.aspectRatio = aspectRatio;
+            u.welcomeBonusGiven = welcomeBonusGiven;
+            u.nanoWarned = nanoWarned;
+            u.midjourneyRawEnabled = midjourneyRawEnabled;
+            u.midjourneyTranslateEnabled = midjourneyTranslateEnabled;
+            u.ideogramSpeed = ideogramSpeed;
+            u.ideogramStyle = ideogramStyle;
+            u.ideogramImageSize = ideogramImageSize;
+            u.ideogramExpandPrompt = ideogramExpandPrompt;
+            u.geminiHistoryEnabled = geminiHistoryEnabled;
+            u.geminiShowCostEnabled = geminiShowCostEnabled;
+            u.klingDuration = klingDuration;
+            u.klingAspectRatio = klingAspectRatio;
+            u.klingAudioEnabled = klingAudioEnabled;
+            u.klingMode = klingMode;
+            u.klingTranslateEnabled = klingTranslateEnabled;
+            u.soraDuration = soraDuration;
+            u.soraAspectRatio = soraAspectRatio;
+            u.veoMode = veoMode;
+            u.veoAspectRatio = veoAspectRatio;
+            return u;
+        }
     }
 
     public static class GeminiMessage {
@@ -1100,6 +1697,12 @@ public class Database {
         public String createdAt;
     }
 
+    public static class PendingImage {
+        public String fileId;
+        public String fileUniqueId;
+        public String uploadedUrl;
+    }
+
     public static class PendingAction {
         public String state;
         public String data;
@@ -1121,6 +1724,18 @@ public class Database {
         public String description;
     }
 
+    public static class GenerationJob {
+        public long reservationId;
+        public long userId;
+        public long chatId;
+        public String model;
+        public long cost;
+        public String taskId;
+        public String taskKind;
+        public String request;
+        public String createdAt;
+    }
+
     public static class PromoCode {
         public String code;
         public long tokens;
@@ -0,0 +1,85 @@
+package com.annexai;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class GenerationLimiter {
+    private final int globalLimit;
+    private final Semaphore global;
+    private final Map<ModelFamily, Integer> familyLimits = new EnumMap<>(ModelFamily.class);
+    private final Map<ModelFamily, Semaphore> families = new EnumMap<>(ModelFamily.class);
+    private volatile Runnable releaseListener;
+
+    public GenerationLimiter(int globalLimit, Map<ModelFamily, Integer> overrides) {
+        this.globalLimit = Math.max(1, globalLimit);
+        this.global = new Semaphore(this.globalLimit, true);
+        for (ModelFamily family : ModelFamily.values()) {
+            int limit = overrides.getOrDefault(family, defaultLimit(family));
+            limit = Math.max(1, Math.min(limit, this.globalLimit));
+            familyLimits.put(family, limit);
+            families.put(family, new Semaphore(limit, true));
+        }
+    }
+
+    public Permit tryAcquire(String model) {
+        if (global.availablePermits() == 0) {
+            return null;
+        }
+        Semaphore familySlots = families.get(ModelFamily.of(model));
+        if (!familySlots.tryAcquire()) {
+            return null;
+        }
+        if (!global.tryAcquire()) {
+            familySlots.release();
+            return null;
+        }
+        return new Permit(familySlots);
+    }
+
+    public void onRelease(Runnable listener) {
+        this.releaseListener = listener;
+    }
+
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("всего ").append(globalLimit - global.availablePermits()).append("/").append(globalLimit);
+        for (ModelFamily family : ModelFamily.values()) {
+            int limit = familyLimits.get(family);
+            int used = limit - families.get(family).availablePermits();
+            if (used > 0) {
+                sb.append(", ").append(family.name().toLowerCase(Locale.ROOT)).append(" ").append(used).append("/").append(limit);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int defaultLimit(ModelFamily family) {
+        if (family.isVideo()) {
+            return 16;
+        }
+        return 32;
+    }
+
+    public final class Permit {
+        private final Semaphore familySlots;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore familySlots) {
+            this.familySlots = familySlots;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                global.release();
+                familySlots.release();
+                Runnable listener = releaseListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        }
+    }
+}
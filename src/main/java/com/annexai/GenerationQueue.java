@@ -0,0 +1,283 @@
+package com.annexai;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class GenerationQueue {
+    private static final long POSITION_REPORT_INTERVAL_MILLIS = 5_000;
+
+    private final GenerationLimiter limiter;
+    private final int capacity;
+    private final Executor executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Priority, LinkedHashMap<Long, ArrayDeque<Job>>> waiting = new EnumMap<>(Priority.class);
+    private final Priority[] cycle;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    private boolean dirty;
+    private int size;
+    private int turn;
+    private long reportedAt;
+
+    public GenerationQueue(GenerationLimiter limiter, int capacity, Executor executor) {
+        this.limiter = limiter;
+        this.capacity = Math.max(1, capacity);
+        this.executor = executor;
+        List<Priority> slots = new ArrayList<>();
+        for (Priority priority : Priority.values()) {
+            waiting.put(priority, new LinkedHashMap<>());
+            for (int i = 0; i < priority.weight; i++) {
+                slots.add(priority);
+            }
+        }
+        this.cycle = slots.toArray(new Priority[0]);
+        limiter.onRelease(this::signal);
+        this.dispatcher = new Thread(this::dispatchLoop, "generation-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public boolean submit(Job job) {
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                return false;
+            }
+            waiting.get(job.priority).computeIfAbsent(job.userId, k -> new ArrayDeque<>()).add(job);
+            size++;
+            dirty = true;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFull() {
+        lock.lock();
+        try {
+            return size >= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append(size).append("/").append(capacity);
+            for (Priority priority : Priority.values()) {
+                int count = 0;
+                for (ArrayDeque<Job> jobs : waiting.get(priority).values()) {
+                    count += jobs.size();
+                }
+                sb.append(", ").append(priority.label).append(" ").append(count);
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            dirty = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            List<Job> started = new ArrayList<>();
+            List<Job> moved = new ArrayList<>();
+            lock.lock();
+            try {
+                dirty = false;
+                Job job;
+                while ((job = nextRunnable()) != null) {
+                    started.add(job);
+                }
+                long now = System.currentTimeMillis();
+                boolean periodic = now - reportedAt >= POSITION_REPORT_INTERVAL_MILLIS;
+                if (periodic) {
+                    reportedAt = now;
+                }
+                collectPositionChanges(periodic, moved);
+            } finally {
+                lock.unlock();
+            }
+            for (Job job : started) {
+                executor.execute(() -> job.listener.onStart(job.permit));
+            }
+            for (Job job : moved) {
+                int position = job.reportedPosition;
+                executor.execute(() -> job.listener.onQueued(position));
+            }
+            lock.lock();
+            try {
+                if (running && !dirty) {
+                    changed.await(POSITION_REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Job nextRunnable() {
+        if (size == 0) {
+            return null;
+        }
+        Set<ModelFamily> saturated = EnumSet.noneOf(ModelFamily.class);
+        for (int k = 0; k < cycle.length; k++) {
+            int index = (turn + k) % cycle.length;
+            LinkedHashMap<Long, ArrayDeque<Job>> users = waiting.get(cycle[index]);
+            Iterator<Map.Entry<Long, ArrayDeque<Job>>> it = users.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, ArrayDeque<Job>> entry = it.next();
+                Job job = entry.getValue().peek();
+                if (job == null || saturated.contains(job.family)) {
+                    continue;
+                }
+                GenerationLimiter.Permit permit = limiter.tryAcquire(job.model);
+                if (permit == null) {
+                    saturated.add(job.family);
+                    continue;
+                }
+                ArrayDeque<Job> jobs = entry.getValue();
+                jobs.poll();
+                it.remove();
+                if (!jobs.isEmpty()) {
+                    users.put(entry.getKey(), jobs);
+                }
+                job.permit = permit;
+                size--;
+                turn = (index + 1) % cycle.length;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void collectPositionChanges(boolean periodic, List<Job> moved) {
+        int position = 0;
+        for (Job job : dispatchOrder()) {
+            position++;
+            if (job.reportedPosition == position) {
+                continue;
+            }
+            if (periodic || job.reportedPosition == 0) {
+                job.reportedPosition = position;
+                moved.add(job);
+            }
+        }
+    }
+
+    private List<Job> dispatchOrder() {
+        Map<Priority, List<Job>> byPriority = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            List<List<Job>> queues = new ArrayList<>();
+            for (ArrayDeque<Job> jobs : waiting.get(priority).values()) {
+                queues.add(new ArrayList<>(jobs));
+            }
+            List<Job> order = new ArrayList<>();
+            for (int round = 0; ; round++) {
+                boolean any = false;
+                for (List<Job> jobs : queues) {
+                    if (round < jobs.size()) {
+                        order.add(jobs.get(round));
+                        any = true;
+                    }
+                }
+                if (!any) {
+                    break;
+                }
+            }
+            byPriority.put(priority, order);
+        }
+        List<Job> result = new ArrayList<>(size);
+        Map<Priority, Integer> taken = new EnumMap<>(Priority.class);
+        int index = turn;
+        while (result.size() < size) {
+            Priority priority = cycle[index % cycle.length];
+            index++;
+            List<Job> order = byPriority.get(priority);
+            int next = taken.getOrDefault(priority, 0);
+            if (next < order.size()) {
+                result.add(order.get(next));
+                taken.put(priority, next + 1);
+            }
+        }
+        return result;
+    }
+
+    public enum Priority {
+        PAID(3, "платные"),
+        FREE(1, "бесплатные");
+
+        final int weight;
+        final String label;
+
+        Priority(int weight, String label) {
+            this.weight = weight;
+            this.label = label;
+        }
+    }
+
+    public interface Listener {
+        void onQueued(int position);
+
+        void onStart(GenerationLimiter.Permit permit);
+    }
+
+    public static final class Job {
+        final long userId;
+        final String model;
+        final ModelFamily family;
+        final Priority priority;
+        final Listener listener;
+        GenerationLimiter.Permit permit;
+        int reportedPosition;
+
+        public Job(long userId, String model, Priority priority, Listener listener) {
+            this.userId = userId;
+            this.model = model;
+            this.family = ModelFamily.of(model);
+            this.priority = priority;
+            this.listener = listener;
+        }
+    }
+}
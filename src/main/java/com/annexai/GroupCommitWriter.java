@@ -0,0 +1,182 @@
+package com.annexai;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+final class GroupCommitWriter {
+    private static final int MAX_BATCH = 256;
+    private static final long LINGER_MILLIS = 2;
+
+    private final SqliteConnectionPool pool;
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+    private final Map<Long, CompletableFuture<Void>> lastWriteByUser = new ConcurrentHashMap<>();
+    private final Object lifecycle = new Object();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    GroupCommitWriter(SqliteConnectionPool pool) {
+        this.pool = pool;
+        this.thread = new Thread(this::run, "db-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    CompletableFuture<Void> submit(Long userId, Work work, String errorMessage) {
+        return submit(userId, work, errorMessage, null);
+    }
+
+    CompletableFuture<Void> submit(Long userId, Work work, String errorMessage, Runnable onCommit) {
+        Op op = new Op(work, errorMessage, onCommit);
+        synchronized (lifecycle) {
+            if (closed) {
+                commit(List.of(op));
+                return op.future;
+            }
+            if (userId != null) {
+                lastWriteByUser.put(userId, op.future);
+                op.future.whenComplete((ignored, error) -> lastWriteByUser.remove(userId, op.future));
+            }
+            queue.add(op);
+        }
+        return op.future;
+    }
+
+    void awaitUser(long userId) {
+        if (Thread.currentThread() == thread || pool.holdsWriteLock()) {
+            return;
+        }
+        CompletableFuture<Void> pending = lastWriteByUser.get(userId);
+        if (pending != null) {
+            pending.handle((ignored, error) -> null).join();
+        }
+    }
+
+    void flush() {
+        if (Thread.currentThread() == thread || pool.holdsWriteLock()) {
+            return;
+        }
+        submit(null, conn -> {
+        }, "Failed to flush writes").handle((ignored, error) -> null).join();
+    }
+
+    void close() {
+        flush();
+        synchronized (lifecycle) {
+            closed = true;
+            thread.interrupt();
+            try {
+                thread.join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<Op> leftover = new ArrayList<>();
+            queue.drainTo(leftover);
+            if (!leftover.isEmpty()) {
+                commit(leftover);
+            }
+        }
+    }
+
+    private void run() {
+        List<Op> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed) {
+            try {
+                Op first = queue.take();
+                batch.add(first);
+                long lingerUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = lingerUntil - System.nanoTime();
+                    Op next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (closed) {
+                    break;
+                }
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            commit(batch);
+        }
+    }
+
+    private void commit(List<Op> batch) {
+        try {
+            runInTransaction(batch);
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            for (Op op : batch) {
+                commit(List.of(op));
+            }
+            return;
+        }
+        for (Op op : batch) {
+            if (op.onCommit != null) {
+                try {
+                    op.onCommit.run();
+                } catch (RuntimeException e) {
+                    System.out.println(op.errorMessage + ": " + e.getMessage());
+                }
+            }
+            op.future.complete(null);
+        }
+    }
+
+    private void runInTransaction(List<Op> batch) throws SQLException {
+        try (Connection conn = pool.writer()) {
+            conn.setAutoCommit(false);
+            try {
+                for (Op op : batch) {
+                    op.work.run(conn);
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void fail(Op op, Exception e) {
+        System.out.println(op.errorMessage + ": " + e.getMessage());
+        op.future.completeExceptionally(new IllegalStateException(op.errorMessage, e));
+    }
+
+    @FunctionalInterface
+    interface Work {
+        void run(Connection conn) throws SQLException;
+    }
+
+    private static final class Op {
+        final Work work;
+        final String errorMessage;
+        final Runnable onCommit;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Op(Work work, String errorMessage, Runnable onCommit) {
+            this.work = work;
+            this.errorMessage = errorMessage;
+            this.onCommit = onCommit;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.annexai;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class HttpClients {
+    enum Upstream {
+        KIE_API("Kie API", 16, 5, 30, 180, 200),
+        KIE_UPLOAD("Kie загрузки", 8, 5, 30, 120, 150),
+        RESULTS("Результаты Kie", 8, 2, 30, 90, 0),
+        TELEGRAM_FILES("Файлы Telegram", 8, 2, 30, 90, 0);
+
+        final String label;
+        final int maxIdle;
+        final int keepAliveMinutes;
+        final int connectSeconds;
+        final int readSeconds;
+        final int callSeconds;
+
+        Upstream(String label, int maxIdle, int keepAliveMinutes, int connectSeconds, int readSeconds, int callSeconds) {
+            this.label = label;
+            this.maxIdle = maxIdle;
+            this.keepAliveMinutes = keepAliveMinutes;
+            this.connectSeconds = connectSeconds;
+            this.readSeconds = readSeconds;
+            this.callSeconds = callSeconds;
+        }
+    }
+
+    private final Map<Upstream, OkHttpClient> clients = new EnumMap<>(Upstream.class);
+    private final Map<Upstream, ConnectionPool> pools = new EnumMap<>(Upstream.class);
+    private final Map<Upstream, Metrics> metrics = new EnumMap<>(Upstream.class);
+
+    HttpClients() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(64);
+        OkHttpClient base = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .retryOnConnectionFailure(true)
+                .build();
+        for (Upstream upstream : Upstream.values()) {
+            ConnectionPool pool = new ConnectionPool(upstream.maxIdle, upstream.keepAliveMinutes, TimeUnit.MINUTES);
+            Metrics counters = new Metrics();
+            clients.put(upstream, base.newBuilder()
+                    .connectionPool(pool)
+                    .eventListener(counters)
+                    .connectTimeout(upstream.connectSeconds, TimeUnit.SECONDS)
+                    .readTimeout(upstream.readSeconds, TimeUnit.SECONDS)
+                    .writeTimeout(30, TimeUnit.SECONDS)
+                    .callTimeout(upstream.callSeconds, TimeUnit.SECONDS)
+                    .build());
+            pools.put(upstream, pool);
+            metrics.put(upstream, counters);
+        }
+    }
+
+    OkHttpClient client(Upstream upstream) {
+        return clients.get(upstream);
+    }
+
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (Upstream upstream : Upstream.values()) {
+            ConnectionPool pool = pools.get(upstream);
+            Metrics counters = metrics.get(upstream);
+            long calls = counters.calls.get();
+            long reused = calls == 0 ? 0 : Math.round(Math.max(0, calls - counters.connects.get()) * 100.0 / calls);
+            sb.append(upstream.label).append(": соединений ").append(pool.connectionCount())
+                    .append(" (простаивает ").append(pool.idleConnectionCount()).append("), запросов ").append(calls)
+                    .append(", новых соединений ").append(counters.connects.get())
+                    .append(", переиспользовано ").append(reused).append("%")
+                    .append(", ошибок ").append(counters.failures.get()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static final class Metrics extends EventListener {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong connects = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        @Override
+        public void callStart(Call call) {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            connects.incrementAndGet();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            failures.incrementAndGet();
+        }
+    }
+}
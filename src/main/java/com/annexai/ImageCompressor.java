@@ -0,0 +1,191 @@
+package com.annexai;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+final class ImageCompressor {
+    private static final float MAX_QUALITY = 0.92f;
+    private static final float MIN_QUALITY = 0.35f;
+    private static final float QUALITY_TOLERANCE = 0.08f;
+    private static final double TARGET_FILL = 0.95;
+    private static final double DEFAULT_LOG_SLOPE = 3.5;
+    private static final int MAX_QUALITY_ATTEMPTS = 6;
+    private static final int MAX_RESCALES = 3;
+    private static final int DECODE_LONG_SIDE = 2560;
+
+    private final long maxBytes;
+    private final Semaphore permits;
+
+    ImageCompressor(long maxBytes, int maxConcurrent) {
+        this.maxBytes = maxBytes;
+        this.permits = new Semaphore(Math.max(1, maxConcurrent), true);
+    }
+
+    Path compress(Path original) {
+        permits.acquireUninterruptibly();
+        try {
+            BufferedImage image = read(original);
+            if (image == null) {
+                return null;
+            }
+            byte[] data = encodeWithinLimit(image);
+            if (data == null) {
+                return null;
+            }
+            Path out = Files.createTempFile("kie_compressed_", ".jpg");
+            Files.write(out, data);
+            return out;
+        } catch (Exception e) {
+            System.out.println("Image compression failed file=" + original.getFileName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private BufferedImage read(Path original) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = (int) Math.ceil(longSide / (double) DECODE_LONG_SIDE);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return toRgb(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private byte[] encodeWithinLimit(BufferedImage image) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+        try {
+            BufferedImage current = image;
+            for (int rescale = 0; rescale <= MAX_RESCALES; rescale++) {
+                int size = encode(writer, current, MAX_QUALITY, buffer);
+                if (size <= maxBytes) {
+                    return buffer.toByteArray();
+                }
+                byte[] found = searchQuality(writer, current, size, buffer);
+                if (found != null) {
+                    return found;
+                }
+                double scale = Math.sqrt((double) maxBytes / buffer.size()) * 0.95;
+                current = resize(current, (int) (current.getWidth() * scale), (int) (current.getHeight() * scale));
+            }
+            return null;
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private byte[] searchQuality(ImageWriter writer, BufferedImage image, int maxQualitySize,
+                                 ByteArrayOutputStream buffer) throws IOException {
+        double target = Math.log(maxBytes * TARGET_FILL);
+        float failQuality = MAX_QUALITY;
+        double failLog = Math.log(maxQualitySize);
+        float fitQuality = 0;
+        double fitLog = 0;
+        byte[] fit = null;
+        double slope = DEFAULT_LOG_SLOPE;
+        for (int attempt = 0; attempt < MAX_QUALITY_ATTEMPTS; attempt++) {
+            double guess = fit == null
+                    ? failQuality - (failLog - target) / slope
+                    : fitQuality + (failQuality - fitQuality) * (target - fitLog) / (failLog - fitLog);
+            float quality = (float) Math.min(failQuality - 0.01, Math.max(MIN_QUALITY, guess));
+            if (fit != null && quality <= fitQuality) {
+                break;
+            }
+            double sizeLog = Math.log(encode(writer, image, quality, buffer));
+            if (buffer.size() <= maxBytes) {
+                fit = buffer.toByteArray();
+                fitQuality = quality;
+                fitLog = sizeLog;
+                if (failQuality - fitQuality <= QUALITY_TOLERANCE) {
+                    break;
+                }
+            } else {
+                if (quality <= MIN_QUALITY) {
+                    break;
+                }
+                if (failLog > sizeLog) {
+                    slope = (failLog - sizeLog) / (failQuality - quality);
+                }
+                failQuality = quality;
+                failLog = sizeLog;
+            }
+        }
+        return fit;
+    }
+
+    private int encode(ImageWriter writer, BufferedImage image, float quality, ByteArrayOutputStream buffer) throws IOException {
+        buffer.reset();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(buffer)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return buffer.size();
+    }
+
+    private static BufferedImage toRgb(BufferedImage source) {
+        int type = source.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR) {
+            return source;
+        }
+        BufferedImage rgb = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+        BufferedImage resized = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.drawImage(source, 0, 0, resized.getWidth(), resized.getHeight(), null);
+        g.dispose();
+        return resized;
+    }
+}
@@ -0,0 +1,121 @@
+package com.annexai;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+final class Json {
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json");
+
+    private Json() {
+    }
+
+    static RequestBody body(Writer writer) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MEDIA_TYPE;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                try (JsonGenerator gen = FACTORY.createGenerator(sink.outputStream())) {
+                    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                    writer.write(gen);
+                }
+            }
+        };
+    }
+
+    static void writeStrings(JsonGenerator gen, String field, List<String> values) throws IOException {
+        gen.writeArrayFieldStart(field);
+        for (String value : values) {
+            gen.writeString(value);
+        }
+        gen.writeEndArray();
+    }
+
+    static void readObject(InputStream in, FieldReader reader) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                readObject(parser, reader);
+            }
+        }
+    }
+
+    static void readObject(String json, FieldReader reader) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                readObject(parser, reader);
+            }
+        }
+    }
+
+    static void readObject(JsonParser parser, FieldReader reader) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (!reader.read(field, parser)) {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    static void readArray(JsonParser parser, ElementReader reader) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        int index = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!reader.read(index++, parser)) {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    static String text(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == null || token == JsonToken.VALUE_NULL) {
+            return "";
+        }
+        if (token.isStructStart()) {
+            parser.skipChildren();
+            return "";
+        }
+        return parser.getText();
+    }
+
+    @FunctionalInterface
+    interface Writer {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface FieldReader {
+        boolean read(String field, JsonParser parser) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface ElementReader {
+        boolean read(int index, JsonParser parser) throws IOException;
+    }
+}
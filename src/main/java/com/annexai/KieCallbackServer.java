@@ -0,0 +1,114 @@
+package com.annexai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+public class KieCallbackServer {
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+
+    private final ObjectMapper mapper = Json.MAPPER;
+    private final HttpServer server;
+    private final byte[] secret;
+    private final Consumer<String> onTaskCompleted;
+
+    public KieCallbackServer(int port, String path, String secret, Consumer<String> onTaskCompleted) throws IOException {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.onTaskCompleted = onTaskCompleted;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext(path == null || path.isBlank() ? "/" : path, this::handle);
+        this.server.setExecutor(Executors.newFixedThreadPool(2));
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Kie callback server listening on port " + port());
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"ok\":false}");
+                return;
+            }
+            if (!hasValidToken(exchange.getRequestURI())) {
+                respond(exchange, 403, "{\"ok\":false}");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                respond(exchange, 413, "{\"ok\":false}");
+                return;
+            }
+            String taskId = extractTaskId(body);
+            if (taskId == null || taskId.isBlank()) {
+                respond(exchange, 400, "{\"ok\":false}");
+                return;
+            }
+            onTaskCompleted.accept(taskId);
+            respond(exchange, 200, "{\"ok\":true}");
+        } catch (Exception e) {
+            System.out.println("Kie callback failed: " + e.getMessage());
+            respond(exchange, 500, "{\"ok\":false}");
+        }
+    }
+
+    private boolean hasValidToken(URI uri) {
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return false;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0 || !"token".equals(pair.substring(0, eq))) {
+                continue;
+            }
+            String value = URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            return MessageDigest.isEqual(secret, value.getBytes(StandardCharsets.UTF_8));
+        }
+        return false;
+    }
+
+    private byte[] readBody(InputStream in) throws IOException {
+        byte[] data = in.readNBytes(MAX_BODY_BYTES + 1);
+        return data.length > MAX_BODY_BYTES ? null : data;
+    }
+
+    private String extractTaskId(byte[] body) throws IOException {
+        JsonNode json = mapper.readTree(body);
+        String taskId = json.path("data").path("taskId").asText();
+        if (taskId == null || taskId.isBlank()) {
+            taskId = json.path("taskId").asText();
+        }
+        return taskId;
+    }
+
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -1,180 +1,125 @@
 package com.annexai;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class KieClient {
+    private static final int GEMINI_ATTEMPTS = 2;
+    private static final long GEMINI_RETRY_DELAY_MILLIS = 1200;
+
     private final Config config;
-    private final OkHttpClient httpClient;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final OkHttpClient apiClient;
+    private final OkHttpClient uploadClient;
+    private final KieGuard guard = new KieGuard();
 
-    public KieClient(Config config) {
+    public KieClient(Config config, HttpClients httpClients) {
         this.config = config;
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(180, java.util.concurrent.TimeUnit.SECONDS)
-                .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .callTimeout(200, java.util.concurrent.TimeUnit.SECONDS)
-                .retryOnConnectionFailure(true)
-                .build();
+        this.apiClient = httpClients.client(HttpClients.Upstream.KIE_API);
+        this.uploadClient = httpClients.client(HttpClients.Upstream.KIE_UPLOAD);
     }
 
-    public String uploadFileUrl(String fileUrl, String fileName) throws IOException {
-        String payload = "{" +
-                "\"fileUrl\":\"" + escape(fileUrl) + "\"," +
-                "\"uploadPath\":\"telegram\"," +
-                "\"fileName\":\"" + escape(fileName) + "\"" +
-                "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieUploadBase + "/api/file-url-upload")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+    public long unavailableForMillis(String model) {
+        ModelFamily family = ModelFamily.of(model);
+        KieGuard.Endpoint endpoint = family == ModelFamily.GEMINI ? KieGuard.Endpoint.CHAT : KieGuard.Endpoint.CREATE;
+        return guard.retryAfterMillis(endpoint, family);
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie upload failed: " + response.code() + " " + err);
-            }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String downloadUrl = json.path("data").path("downloadUrl").asText();
-            return downloadUrl.isBlank() ? json.path("data").path("fileUrl").asText() : downloadUrl;
-        }
+    public String guardStats() {
+        return guard.stats();
     }
 
-    public String createNanoBananaTask(String model, String prompt, List<String> imageUrls, String aspectRatio, String outputFormat, String resolution) throws IOException {
-        String payload;
-        if ("nano-banana-pro".equalsIgnoreCase(model)) {
-            StringBuilder images = new StringBuilder("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
-                }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
-            }
-            images.append("]");
-
-            payload = "{" +
-                    "\"model\":\"" + escape(model) + "\"," +
-                    "\"input\":{"
-                    + "\"prompt\":\"" + escape(prompt) + "\"," +
-                    "\"image_input\":" + images + "," +
-                    "\"aspect_ratio\":\"" + escape(aspectRatio) + "\"," +
-                    "\"resolution\":\"" + escape(resolution) + "\"," +
-                    "\"output_format\":\"" + escape(outputFormat) + "\"" +
-                    "}" +
-                    "}";
-        } else if ("google/nano-banana-edit".equalsIgnoreCase(model)) {
-            StringBuilder images = new StringBuilder("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
-                }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
-            }
-            images.append("]");
-            payload = "{" +
-                    "\"model\":\"" + escape(model) + "\"," +
-                    "\"input\":{"
-                    + "\"prompt\":\"" + escape(prompt) + "\"," +
-                    "\"image_urls\":" + images + "," +
-                    "\"output_format\":\"" + escape(outputFormat) + "\"," +
-                    "\"image_size\":\"" + escape(aspectRatio) + "\"" +
-                    "}" +
-                    "}";
-        } else {
-            payload = "{" +
-                    "\"model\":\"" + escape(model) + "\"," +
-                    "\"input\":{"
-                    + "\"prompt\":\"" + escape(prompt) + "\"," +
-                    "\"output_format\":\"" + escape(outputFormat) + "\"," +
-                    "\"image_size\":\"" + escape(aspectRatio) + "\"" +
-                    "}" +
-                    "}";
-        }
+    public String uploadFileUrl(String fileUrl, String fileName) throws IOException {
+        return await(uploadFileUrlAsync(fileUrl, fileName));
+    }
 
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/jobs/createTask")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+    public CompletableFuture<String> uploadFileUrlAsync(String fileUrl, String fileName) {
+        RequestBody body = Json.body(gen -> {
+            gen.writeStartObject();
+            gen.writeStringField("fileUrl", orEmpty(fileUrl));
+            gen.writeStringField("uploadPath", "telegram");
+            gen.writeStringField("fileName", orEmpty(fileName));
+            gen.writeEndObject();
+        });
 
-        try (Response response = httpClient.newCall(request).execute()) {
+        return guarded(KieGuard.Endpoint.UPLOAD, null, uploadClient, post(config.kieUploadBase + "/api/file-url-upload", body), response -> {
             if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie createTask failed: " + response.code() + " " + err);
-            }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie createTask returned empty taskId: " + respBody);
+                throw new IOException("Kie upload failed: " + response.code() + " " + errorBody(response));
             }
-            return taskId;
-        }
+            UploadedFile uploaded = new UploadedFile();
+            readBody(response, (field, parser) -> {
+                if (!"data".equals(field)) {
+                    return false;
+                }
+                Json.readObject(parser, (dataField, data) -> {
+                    if ("downloadUrl".equals(dataField)) {
+                        uploaded.downloadUrl = Json.text(data);
+                        return true;
+                    }
+                    if ("fileUrl".equals(dataField)) {
+                        uploaded.fileUrl = Json.text(data);
+                        return true;
+                    }
+                    return false;
+                });
+                return true;
+            });
+            return uploaded.downloadUrl.isBlank() ? uploaded.fileUrl : uploaded.downloadUrl;
+        });
     }
 
-    public String createFluxTask(String model, String prompt, List<String> imageUrls, String aspectRatio, String resolution) throws IOException {
-        StringBuilder images = new StringBuilder();
-        if (imageUrls != null && !imageUrls.isEmpty()) {
-            images.append("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
+    public String createNanoBananaTask(String model, String prompt, List<String> imageUrls, String aspectRatio, String outputFormat, String resolution) throws IOException {
+        return await(createNanoBananaTaskAsync(model, prompt, imageUrls, aspectRatio, outputFormat, resolution));
+    }
+
+    public CompletableFuture<String> createNanoBananaTaskAsync(String model, String prompt, List<String> imageUrls, String aspectRatio, String outputFormat, String resolution) {
+        List<String> images = imageUrls == null ? List.of() : imageUrls;
+        return createJobTask(model, input -> {
+            input.writeStringField("prompt", orEmpty(prompt));
+            if ("nano-banana-pro".equalsIgnoreCase(model)) {
+                Json.writeStrings(input, "image_input", images);
+                input.writeStringField("aspect_ratio", orEmpty(aspectRatio));
+                input.writeStringField("resolution", orEmpty(resolution));
+                input.writeStringField("output_format", orEmpty(outputFormat));
+            } else {
+                if ("google/nano-banana-edit".equalsIgnoreCase(model)) {
+                    Json.writeStrings(input, "image_urls", images);
                 }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
+                input.writeStringField("output_format", orEmpty(outputFormat));
+                input.writeStringField("image_size", orEmpty(aspectRatio));
             }
-            images.append("]");
-        }
+        });
+    }
 
-        List<String> fields = new java.util.ArrayList<>();
-        fields.add("\"prompt\":\"" + escape(prompt) + "\"");
-        if (images.length() > 0) {
-            fields.add("\"input_urls\":" + images);
-        }
-        if (aspectRatio != null && !aspectRatio.isBlank()) {
-            fields.add("\"aspect_ratio\":\"" + escape(aspectRatio) + "\"");
-        }
-        if (resolution != null && !resolution.isBlank()) {
-            fields.add("\"resolution\":\"" + escape(resolution) + "\"");
-        }
-        String input = String.join(",", fields);
-        String payload = "{" +
-                "\"model\":\"" + escape(model) + "\"," +
-                "\"input\":{" + input + "}" +
-                "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/jobs/createTask")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+    public String createFluxTask(String model, String prompt, List<String> imageUrls, String aspectRatio, String resolution) throws IOException {
+        return await(createFluxTaskAsync(model, prompt, imageUrls, aspectRatio, resolution));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie createTask failed: " + response.code() + " " + err);
+    public CompletableFuture<String> createFluxTaskAsync(String model, String prompt, List<String> imageUrls, String aspectRatio, String resolution) {
+        return createJobTask(model, input -> {
+            input.writeStringField("prompt", orEmpty(prompt));
+            if (imageUrls != null && !imageUrls.isEmpty()) {
+                Json.writeStrings(input, "input_urls", imageUrls);
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie createTask returned empty taskId: " + respBody);
+            if (aspectRatio != null && !aspectRatio.isBlank()) {
+                input.writeStringField("aspect_ratio", aspectRatio);
             }
-            return taskId;
-        }
+            if (resolution != null && !resolution.isBlank()) {
+                input.writeStringField("resolution", resolution);
+            }
+        });
     }
 
     public String createIdeogramTask(String model,
@@ -188,70 +133,50 @@ public class KieClient {
                                      String maskUrl,
                                      Integer numImages,
                                      Double strength) throws IOException {
-        List<String> fields = new java.util.ArrayList<>();
-        fields.add("\"prompt\":\"" + escape(prompt) + "\"");
-        if (renderingSpeed != null && !renderingSpeed.isBlank()) {
-            fields.add("\"rendering_speed\":\"" + escape(renderingSpeed) + "\"");
-        }
-        if (style != null && !style.isBlank()) {
-            fields.add("\"style\":\"" + escape(style) + "\"");
-        }
-        if (expandPrompt != null) {
-            fields.add("\"expand_prompt\":" + (expandPrompt ? "true" : "false"));
-        }
-        if (imageSize != null && !imageSize.isBlank()) {
-            fields.add("\"image_size\":\"" + escape(imageSize) + "\"");
-        }
-        if (numImages != null) {
-            fields.add("\"num_images\":\"" + numImages + "\"");
-        }
-        if (strength != null) {
-            fields.add("\"strength\":" + strength);
-        }
-        if (referenceImageUrls != null && !referenceImageUrls.isEmpty()) {
-            StringBuilder refs = new StringBuilder("[");
-            for (int i = 0; i < referenceImageUrls.size(); i++) {
-                if (i > 0) {
-                    refs.append(",");
-                }
-                refs.append("\"").append(escape(referenceImageUrls.get(i))).append("\"");
-            }
-            refs.append("]");
-            fields.add("\"reference_image_urls\":" + refs);
-        }
-        if (imageUrl != null && !imageUrl.isBlank()) {
-            fields.add("\"image_url\":\"" + escape(imageUrl) + "\"");
-        }
-        if (maskUrl != null && !maskUrl.isBlank()) {
-            fields.add("\"mask_url\":\"" + escape(maskUrl) + "\"");
-        }
-
-        String input = String.join(",", fields);
-        String payload = "{" +
-                "\"model\":\"" + escape(model) + "\"," +
-                "\"input\":{" + input + "}" +
-                "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/jobs/createTask")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+        return await(createIdeogramTaskAsync(model, prompt, renderingSpeed, style, expandPrompt, imageSize, referenceImageUrls, imageUrl, maskUrl, numImages, strength));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie createTask failed: " + response.code() + " " + err);
+    public CompletableFuture<String> createIdeogramTaskAsync(String model,
+                                                             String prompt,
+                                                             String renderingSpeed,
+                                                             String style,
+                                                             Boolean expandPrompt,
+                                                             String imageSize,
+                                                             List<String> referenceImageUrls,
+                                                             String imageUrl,
+                                                             String maskUrl,
+                                                             Integer numImages,
+                                                             Double strength) {
+        return createJobTask(model, input -> {
+            input.writeStringField("prompt", orEmpty(prompt));
+            if (renderingSpeed != null && !renderingSpeed.isBlank()) {
+                input.writeStringField("rendering_speed", renderingSpeed);
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie createTask returned empty taskId: " + respBody);
+            if (style != null && !style.isBlank()) {
+                input.writeStringField("style", style);
             }
-            return taskId;
-        }
+            if (expandPrompt != null) {
+                input.writeBooleanField("expand_prompt", expandPrompt);
+            }
+            if (imageSize != null && !imageSize.isBlank()) {
+                input.writeStringField("image_size", imageSize);
+            }
+            if (numImages != null) {
+                input.writeStringField("num_images", String.valueOf(numImages));
+            }
+            if (strength != null) {
+                input.writeNumberField("strength", strength);
+            }
+            if (referenceImageUrls != null && !referenceImageUrls.isEmpty()) {
+                Json.writeStrings(input, "reference_image_urls", referenceImageUrls);
+            }
+            if (imageUrl != null && !imageUrl.isBlank()) {
+                input.writeStringField("image_url", imageUrl);
+            }
+            if (maskUrl != null && !maskUrl.isBlank()) {
+                input.writeStringField("mask_url", maskUrl);
+            }
+        });
     }
 
     public String createKlingTask(String prompt,
@@ -260,55 +185,31 @@ public class KieClient {
                                   int durationSeconds,
                                   boolean sound,
                                   String mode) throws IOException {
-        List<String> fields = new java.util.ArrayList<>();
-        fields.add("\"prompt\":\"" + escape(prompt) + "\"");
-        if (imageUrls != null && !imageUrls.isEmpty()) {
-            StringBuilder images = new StringBuilder("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
-                }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
-            }
-            images.append("]");
-            fields.add("\"image_urls\":" + images);
-        }
-        if ((imageUrls == null || imageUrls.isEmpty()) && aspectRatio != null && !aspectRatio.isBlank()) {
-            fields.add("\"aspect_ratio\":\"" + escape(aspectRatio) + "\"");
-        }
-        fields.add("\"duration\":\"" + durationSeconds + "\"");
-        fields.add("\"sound\":" + (sound ? "true" : "false"));
-        if (mode != null && !mode.isBlank()) {
-            fields.add("\"mode\":\"" + escape(mode) + "\"");
-        }
-        fields.add("\"multi_shots\":false");
-
-        String input = String.join(",", fields);
-        String payload = "{" +
-                "\"model\":\"kling-3.0/video\"," +
-                "\"input\":{" + input + "}" +
-                "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/jobs/createTask")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+        return await(createKlingTaskAsync(prompt, imageUrls, aspectRatio, durationSeconds, sound, mode));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie createTask failed: " + response.code() + " " + err);
+    public CompletableFuture<String> createKlingTaskAsync(String prompt,
+                                                          List<String> imageUrls,
+                                                          String aspectRatio,
+                                                          int durationSeconds,
+                                                          boolean sound,
+                                                          String mode) {
+        boolean hasImages = imageUrls != null && !imageUrls.isEmpty();
+        return createJobTask("kling-3.0/video", input -> {
+            input.writeStringField("prompt", orEmpty(prompt));
+            if (hasImages) {
+                Json.writeStrings(input, "image_urls", imageUrls);
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie createTask returned empty taskId: " + respBody);
+            if (!hasImages && aspectRatio != null && !aspectRatio.isBlank()) {
+                input.writeStringField("aspect_ratio", aspectRatio);
             }
-            return taskId;
-        }
+            input.writeStringField("duration", String.valueOf(durationSeconds));
+            input.writeBooleanField("sound", sound);
+            if (mode != null && !mode.isBlank()) {
+                input.writeStringField("mode", mode);
+            }
+            input.writeBooleanField("multi_shots", false);
+        });
     }
 
     public String createSoraTask(String model,
@@ -317,105 +218,63 @@ public class KieClient {
                                  String aspectRatio,
                                  int durationSeconds,
                                  String uploadMethod) throws IOException {
-        List<String> fields = new java.util.ArrayList<>();
-        fields.add("\"prompt\":\"" + escape(prompt) + "\"");
-        if (aspectRatio != null && !aspectRatio.isBlank()) {
-            fields.add("\"aspect_ratio\":\"" + escape(aspectRatio) + "\"");
-        }
-        fields.add("\"n_frames\":\"" + durationSeconds + "\"");
-        if (uploadMethod != null && !uploadMethod.isBlank()) {
-            fields.add("\"upload_method\":\"" + escape(uploadMethod) + "\"");
-        }
-        if (imageUrls != null && !imageUrls.isEmpty()) {
-            StringBuilder images = new StringBuilder("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
-                }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
-            }
-            images.append("]");
-            fields.add("\"image_urls\":" + images);
-        }
-
-        String input = String.join(",", fields);
-        String payload = "{" +
-                "\"model\":\"" + escape(model) + "\"," +
-                "\"input\":{" + input + "}" +
-                "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/jobs/createTask")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+        return await(createSoraTaskAsync(model, prompt, imageUrls, aspectRatio, durationSeconds, uploadMethod));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie createTask failed: " + response.code() + " " + err);
+    public CompletableFuture<String> createSoraTaskAsync(String model,
+                                                         String prompt,
+                                                         List<String> imageUrls,
+                                                         String aspectRatio,
+                                                         int durationSeconds,
+                                                         String uploadMethod) {
+        return createJobTask(model, input -> {
+            input.writeStringField("prompt", orEmpty(prompt));
+            if (aspectRatio != null && !aspectRatio.isBlank()) {
+                input.writeStringField("aspect_ratio", aspectRatio);
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie createTask returned empty taskId: " + respBody);
+            input.writeStringField("n_frames", String.valueOf(durationSeconds));
+            if (uploadMethod != null && !uploadMethod.isBlank()) {
+                input.writeStringField("upload_method", uploadMethod);
             }
-            return taskId;
-        }
+            if (imageUrls != null && !imageUrls.isEmpty()) {
+                Json.writeStrings(input, "image_urls", imageUrls);
+            }
+        });
     }
 
     public String createVeoTask(String model,
                                 String prompt,
                                 List<String> imageUrls,
                                 String aspectRatio) throws IOException {
-        List<String> fields = new java.util.ArrayList<>();
-        fields.add("\"prompt\":\"" + escape(prompt) + "\"");
-        if (imageUrls != null && !imageUrls.isEmpty()) {
-            StringBuilder images = new StringBuilder("[");
-            for (int i = 0; i < imageUrls.size(); i++) {
-                if (i > 0) {
-                    images.append(",");
-                }
-                images.append("\"").append(escape(imageUrls.get(i))).append("\"");
-            }
-            images.append("]");
-            fields.add("\"imageUrls\":" + images);
-            fields.add("\"generationType\":\"FIRST_AND_LAST_FRAMES_2_VIDEO\"");
-        } else {
-            fields.add("\"generationType\":\"TEXT_2_VIDEO\"");
-        }
-        if (aspectRatio != null && !aspectRatio.isBlank()) {
-            fields.add("\"aspect_ratio\":\"" + escape(aspectRatio) + "\"");
-        }
-        fields.add("\"model\":\"" + escape(model) + "\"");
-
-        String payload = "{" + String.join(",", fields) + "}";
-
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(config.kieApiBase + "/api/v1/veo/generate")
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+        return await(createVeoTaskAsync(model, prompt, imageUrls, aspectRatio));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie veo generate failed: " + response.code() + " " + err);
+    public CompletableFuture<String> createVeoTaskAsync(String model,
+                                                        String prompt,
+                                                        List<String> imageUrls,
+                                                        String aspectRatio) {
+        RequestBody body = taskBody(gen -> {
+            gen.writeStringField("prompt", orEmpty(prompt));
+            if (imageUrls != null && !imageUrls.isEmpty()) {
+                Json.writeStrings(gen, "imageUrls", imageUrls);
+                gen.writeStringField("generationType", "FIRST_AND_LAST_FRAMES_2_VIDEO");
+            } else {
+                gen.writeStringField("generationType", "TEXT_2_VIDEO");
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            String taskId = json.path("data").path("taskId").asText();
-            if (taskId == null || taskId.isBlank()) {
-                throw new IOException("Kie veo generate returned empty taskId: " + respBody);
+            if (aspectRatio != null && !aspectRatio.isBlank()) {
+                gen.writeStringField("aspect_ratio", aspectRatio);
             }
-            return taskId;
-        }
+            gen.writeStringField("model", orEmpty(model));
+        });
+        return guarded(KieGuard.Endpoint.CREATE, ModelFamily.VEO, apiClient, post(config.kieApiBase + "/api/v1/veo/generate", body),
+                taskIdHandler("Kie veo generate"));
     }
 
     public String createGeminiTask(String model, String prompt, List<String> imageUrls, List<String> fileUrls) throws IOException {
+        return await(createGeminiTaskAsync(model, prompt, imageUrls, fileUrls));
+    }
+
+    public CompletableFuture<String> createGeminiTaskAsync(String model, String prompt, List<String> imageUrls, List<String> fileUrls) {
         StringBuilder content = new StringBuilder(prompt == null ? "" : prompt.trim());
         if (imageUrls != null && !imageUrls.isEmpty()) {
             if (content.length() > 0) {
@@ -436,62 +295,79 @@ public class KieClient {
             }
         }
         List<ChatMessage> messages = List.of(new ChatMessage("user", content.toString().trim()));
-        return createGeminiCompletion(model, messages);
+        return createGeminiCompletionAsync(model, messages);
     }
 
     public String createGeminiCompletion(String model, List<ChatMessage> messages) throws IOException {
-        if (messages == null || messages.isEmpty()) {
-            throw new IllegalArgumentException("Gemini messages are empty.");
-        }
-        ObjectNode root = mapper.createObjectNode();
-        root.put("stream", false);
-        ArrayNode arr = root.putArray("messages");
-        for (ChatMessage msg : messages) {
-            ObjectNode m = arr.addObject();
-            m.put("role", msg.role == null ? "user" : msg.role);
-            String content = msg.content == null ? "" : msg.content;
-            m.put("content", content);
-        }
+        return await(createGeminiCompletionAsync(model, messages));
+    }
 
-        String payload = mapper.writeValueAsString(root);
-        RequestBody body = RequestBody.create(payload, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(geminiEndpointForModel(model))
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .post(body)
-                .build();
+    public CompletableFuture<String> createGeminiCompletionAsync(String model, List<ChatMessage> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Gemini messages are empty."));
+        }
+        RequestBody body = Json.body(gen -> {
+            gen.writeStartObject();
+            gen.writeBooleanField("stream", false);
+            gen.writeArrayFieldStart("messages");
+            for (ChatMessage msg : messages) {
+                gen.writeStartObject();
+                gen.writeStringField("role", msg.role == null ? "user" : msg.role);
+                gen.writeStringField("content", orEmpty(msg.content));
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        });
+        return geminiCompletion(post(geminiEndpointForModel(model), body), 1);
+    }
 
-        int attempts = 2;
-        for (int i = 0; i < attempts; i++) {
-            try (Response response = httpClient.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    String err = response.body() != null ? response.body().string() : "";
-                    int code = response.code();
-                    if ((code == 524 || code == 504 || code == 408) && i < attempts - 1) {
-                        try {
-                            Thread.sleep(1200);
-                        } catch (InterruptedException ignored) {
-                            Thread.currentThread().interrupt();
-                        }
-                        continue;
-                    }
-                    throw new IOException("Kie gemini completion failed: " + code + " " + err);
-                }
-                String respBody = response.body() != null ? response.body().string() : "{}";
-                JsonNode json = mapper.readTree(respBody);
-                JsonNode choices = json.path("choices");
-                String content = "";
-                if (choices.isArray() && choices.size() > 0) {
-                    JsonNode msg = choices.get(0).path("message");
-                    content = msg.path("content").asText();
+    private CompletableFuture<String> geminiCompletion(Request request, int attempt) {
+        return guarded(KieGuard.Endpoint.CHAT, ModelFamily.GEMINI, apiClient, request, response -> {
+            if (!response.isSuccessful()) {
+                int code = response.code();
+                if ((code == 524 || code == 504 || code == 408) && attempt < GEMINI_ATTEMPTS) {
+                    return null;
                 }
-                if (content == null || content.isBlank()) {
-                    throw new IOException("Kie gemini completion returned empty content: " + respBody);
+                throw new IOException("Kie gemini completion failed: " + code + " " + errorBody(response));
+            }
+            StringBuilder content = new StringBuilder();
+            readBody(response, (field, parser) -> {
+                if (!"choices".equals(field)) {
+                    return false;
                 }
-                return content;
+                Json.readArray(parser, (index, choice) -> index == 0 && readChoiceContent(choice, content));
+                return true;
+            });
+            if (content.toString().isBlank()) {
+                throw new IOException("Kie gemini completion returned empty content");
             }
-        }
-        throw new IOException("Kie gemini completion failed: 524 error code: 524");
+            return content.toString();
+        }).thenCompose(content -> {
+            if (content != null) {
+                return CompletableFuture.completedFuture(content);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(GEMINI_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> attempt + 1, delayed)
+                    .thenCompose(next -> geminiCompletion(request, next));
+        });
+    }
+
+    private static boolean readChoiceContent(JsonParser choice, StringBuilder content) throws IOException {
+        Json.readObject(choice, (field, parser) -> {
+            if (!"message".equals(field)) {
+                return false;
+            }
+            Json.readObject(parser, (messageField, message) -> {
+                if (!"content".equals(messageField)) {
+                    return false;
+                }
+                content.append(Json.text(message));
+                return true;
+            });
+            return true;
+        });
+        return true;
     }
 
     private String geminiEndpointForModel(String model) {
@@ -513,105 +389,339 @@ public class KieClient {
     }
 
     public TaskInfo getTaskInfo(String taskId) throws IOException {
-        HttpUrl url = HttpUrl.parse(config.kieApiBase + "/api/v1/jobs/recordInfo")
-                .newBuilder()
-                .addQueryParameter("taskId", taskId)
-                .build();
-
-        Request request = new Request.Builder()
-                .url(url)
-                .addHeader("Authorization", "Bearer " + config.kieApiKey)
-                .get()
-                .build();
+        return await(getTaskInfoAsync(taskId));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
+    public CompletableFuture<TaskInfo> getTaskInfoAsync(String taskId) {
+        return send(apiClient, get("/api/v1/jobs/recordInfo", taskId), response -> {
             if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie recordInfo failed: " + response.code() + " " + err);
+                throw new IOException("Kie recordInfo failed: " + response.code() + " " + errorBody(response));
             }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            JsonNode data = json.path("data");
             TaskInfo info = new TaskInfo();
-            info.taskId = data.path("taskId").asText();
-            info.state = data.path("state").asText();
-            info.resultJson = data.path("resultJson").asText();
-            String failReason = data.path("failReason").asText();
-            if (failReason == null || failReason.isBlank()) {
-                failReason = data.path("failMsg").asText();
-            }
-            info.failReason = failReason;
+            String[] failMsg = {""};
+            readBody(response, (field, parser) -> {
+                if (!"data".equals(field)) {
+                    return false;
+                }
+                Json.readObject(parser, (dataField, data) -> {
+                    switch (dataField) {
+                        case "taskId" -> info.taskId = Json.text(data);
+                        case "state" -> info.state = Json.text(data);
+                        case "resultJson" -> {
+                            ResultExtractor.Result result;
+                            if (data.currentToken() == JsonToken.START_OBJECT) {
+                                result = ResultExtractor.extract(data);
+                            } else {
+                                info.resultJson = Json.text(data);
+                                result = ResultExtractor.extract(info.resultJson);
+                            }
+                            info.resultUrls = result.urls;
+                            info.resultText = result.text;
+                        }
+                        case "failReason" -> info.failReason = Json.text(data);
+                        case "failMsg" -> failMsg[0] = Json.text(data);
+                        default -> {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                return true;
+            });
+            if (info.failReason == null || info.failReason.isBlank()) {
+                info.failReason = failMsg[0];
+            }
             return info;
-        }
+        });
     }
 
     public VeoTaskInfo getVeoTaskInfo(String taskId) throws IOException {
-        HttpUrl url = HttpUrl.parse(config.kieApiBase + "/api/v1/veo/record-info")
+        return await(getVeoTaskInfoAsync(taskId));
+    }
+
+    public CompletableFuture<VeoTaskInfo> getVeoTaskInfoAsync(String taskId) {
+        return send(apiClient, get("/api/v1/veo/record-info", taskId), response -> {
+            if (!response.isSuccessful()) {
+                throw new IOException("Kie veo record-info failed: " + response.code() + " " + errorBody(response));
+            }
+            VeoRecord record = new VeoRecord();
+            readBody(response, (field, parser) -> {
+                if ("msg".equals(field)) {
+                    record.msg = Json.text(parser);
+                    return true;
+                }
+                if ("data".equals(field)) {
+                    Json.readObject(parser, record::readData);
+                    return true;
+                }
+                return false;
+            });
+            String errorMessage = record.errorMessage.isBlank() ? record.msg : record.errorMessage;
+            List<String> urls = record.hasResponse ? record.responseUrls : record.dataUrls;
+            if (urls.isEmpty()) {
+                urls = record.originUrls;
+            }
+            return new VeoTaskInfo(record.successFlag, errorMessage, urls);
+        });
+    }
+
+    private Request get(String path, String taskId) {
+        HttpUrl url = HttpUrl.parse(config.kieApiBase + path)
                 .newBuilder()
                 .addQueryParameter("taskId", taskId)
                 .build();
-
-        Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(url)
                 .addHeader("Authorization", "Bearer " + config.kieApiKey)
                 .get()
                 .build();
+    }
+
+    private CompletableFuture<String> createJobTask(String model, Json.Writer input) {
+        RequestBody body = taskBody(gen -> {
+            gen.writeStringField("model", orEmpty(model));
+            gen.writeObjectFieldStart("input");
+            input.write(gen);
+            gen.writeEndObject();
+        });
+        return guarded(KieGuard.Endpoint.CREATE, ModelFamily.of(model), apiClient, post(config.kieApiBase + "/api/v1/jobs/createTask", body),
+                taskIdHandler("Kie createTask"));
+    }
+
+    private RequestBody taskBody(Json.Writer fields) {
+        String callbackUrl = callbackUrl();
+        return Json.body(gen -> {
+            gen.writeStartObject();
+            if (callbackUrl != null) {
+                gen.writeStringField("callBackUrl", callbackUrl);
+            }
+            fields.write(gen);
+            gen.writeEndObject();
+        });
+    }
+
+    private Request post(String url, RequestBody body) {
+        return new Request.Builder()
+                .url(url)
+                .addHeader("Authorization", "Bearer " + config.kieApiKey)
+                .post(body)
+                .build();
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
+    private ResponseHandler<String> taskIdHandler(String operation) {
+        return response -> {
             if (!response.isSuccessful()) {
-                String err = response.body() != null ? response.body().string() : "";
-                throw new IOException("Kie veo record-info failed: " + response.code() + " " + err);
-            }
-            String respBody = response.body() != null ? response.body().string() : "{}";
-            JsonNode json = mapper.readTree(respBody);
-            JsonNode data = json.path("data");
-            int successFlag = data.path("successFlag").asInt(-1);
-            String errorMessage = data.path("errorMessage").asText();
-            if (errorMessage == null || errorMessage.isBlank()) {
-                errorMessage = json.path("msg").asText();
-            }
-            List<String> urls = new java.util.ArrayList<>();
-            JsonNode responseNode = data.path("response");
-            JsonNode resultUrls = responseNode.isMissingNode() ? data.path("resultUrls") : responseNode.path("resultUrls");
-            if (resultUrls.isTextual()) {
-                String raw = resultUrls.asText();
-                try {
-                    JsonNode parsed = mapper.readTree(raw);
-                    if (parsed.isArray()) {
-                        for (JsonNode n : parsed) {
-                            urls.add(n.asText());
+                throw new IOException(operation + " failed: " + response.code() + " " + errorBody(response));
+            }
+            CreatedTask created = new CreatedTask();
+            readBody(response, (field, parser) -> {
+                switch (field) {
+                    case "code" -> created.code = Json.text(parser);
+                    case "msg" -> created.msg = Json.text(parser);
+                    case "data" -> Json.readObject(parser, (dataField, data) -> {
+                        if (!"taskId".equals(dataField)) {
+                            return false;
                         }
+                        created.taskId = Json.text(data);
+                        return true;
+                    });
+                    default -> {
+                        return false;
                     }
-                } catch (Exception ignored) {
                 }
-            } else if (resultUrls.isArray()) {
-                for (JsonNode n : resultUrls) {
-                    urls.add(n.asText());
+                return true;
+            });
+            if (created.taskId.isBlank()) {
+                throw new IOException(operation + " returned empty taskId: code=" + created.code + " msg=" + created.msg);
+            }
+            return created.taskId;
+        };
+    }
+
+    private static void readBody(Response response, Json.FieldReader reader) throws IOException {
+        ResponseBody body = response.body();
+        if (body != null) {
+            Json.readObject(body.byteStream(), reader);
+        }
+    }
+
+    private static String errorBody(Response response) throws IOException {
+        return response.body() != null ? response.body().string() : "";
+    }
+
+    private <T> CompletableFuture<T> send(OkHttpClient client, Request request, ResponseHandler<T> handler) {
+        return send(client, null, request, handler);
+    }
+
+    private <T> CompletableFuture<T> send(OkHttpClient client, KieGuard.Ticket ticket, Request request, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Call call = client.newCall(request);
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                if (ticket != null) {
+                    ticket.cancelled();
+                }
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call failed, IOException e) {
+                if (ticket != null) {
+                    ticket.failure();
                 }
+                future.completeExceptionally(e);
             }
-            if (urls.isEmpty()) {
-                JsonNode originUrls = responseNode.path("originUrls");
-                if (originUrls.isArray()) {
-                    for (JsonNode n : originUrls) {
-                        urls.add(n.asText());
+
+            @Override
+            public void onResponse(Call completed, Response response) {
+                if (ticket != null) {
+                    if (isUpstreamFailure(response.code())) {
+                        ticket.failure();
+                    } else {
+                        ticket.success();
                     }
                 }
+                try (response) {
+                    future.complete(handler.handle(response));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
             }
-            return new VeoTaskInfo(successFlag, errorMessage, urls);
+        });
+        return future;
+    }
+
+    private <T> CompletableFuture<T> guarded(KieGuard.Endpoint endpoint, ModelFamily family, OkHttpClient client,
+                                             Request request, ResponseHandler<T> handler) {
+        KieGuard.Ticket ticket;
+        try {
+            ticket = guard.acquire(endpoint, family);
+        } catch (KieGuard.UnavailableException e) {
+            return CompletableFuture.failedFuture(e);
         }
+        return send(client, ticket, request, handler);
     }
 
-    private String escape(String value) {
-        if (value == null) {
-            return "";
+    private static boolean isUpstreamFailure(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Kie request interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    private String callbackUrl() {
+        if (!config.kieCallbacksEnabled()) {
+            return null;
+        }
+        String separator = config.kieCallbackUrl.contains("?") ? "&" : "?";
+        return config.kieCallbackUrl + separator + "token="
+                + URLEncoder.encode(config.kieCallbackSecret, StandardCharsets.UTF_8);
+    }
+
+    private static String orEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static List<String> readUrls(JsonParser parser) throws IOException {
+        List<String> urls = new ArrayList<>();
+        if (parser.currentToken() == JsonToken.VALUE_STRING) {
+            try (JsonParser nested = Json.FACTORY.createParser(parser.getText())) {
+                if (nested.nextToken() == JsonToken.START_ARRAY) {
+                    readUrls(nested, urls);
+                }
+            } catch (IOException ignored) {
+            }
+            return urls;
+        }
+        readUrls(parser, urls);
+        return urls;
+    }
+
+    private static void readUrls(JsonParser parser, List<String> urls) throws IOException {
+        Json.readArray(parser, (index, element) -> {
+            urls.add(Json.text(element));
+            return true;
+        });
+    }
+
+    private static class UploadedFile {
+        String downloadUrl = "";
+        String fileUrl = "";
+    }
+
+    private static class CreatedTask {
+        String taskId = "";
+        String code = "";
+        String msg = "";
+    }
+
+    private static class VeoRecord {
+        int successFlag = -1;
+        String errorMessage = "";
+        String msg = "";
+        boolean hasResponse;
+        List<String> responseUrls = List.of();
+        List<String> dataUrls = List.of();
+        List<String> originUrls = List.of();
+
+        boolean readData(String field, JsonParser parser) throws IOException {
+            switch (field) {
+                case "successFlag" -> successFlag = parser.getValueAsInt(-1);
+                case "errorMessage" -> errorMessage = Json.text(parser);
+                case "resultUrls" -> dataUrls = readUrls(parser);
+                case "response" -> {
+                    hasResponse = true;
+                    Json.readObject(parser, (responseField, response) -> {
+                        if ("resultUrls".equals(responseField)) {
+                            responseUrls = readUrls(response);
+                            return true;
+                        }
+                        if ("originUrls".equals(responseField)) {
+                            originUrls = readUrls(response);
+                            return true;
+                        }
+                        return false;
+                    });
+                }
+                default -> {
+                    return false;
+                }
+            }
+            return true;
         }
-        return value.replace("\\", "\\\\").replace("\"", "\\\"");
     }
 
     public static class TaskInfo {
         public String taskId;
         public String state;
         public String resultJson;
+        public List<String> resultUrls = List.of();
+        public String resultText = "";
         public String failReason;
     }
 
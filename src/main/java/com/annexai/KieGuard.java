@@ -0,0 +1,280 @@
+package com.annexai;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+final class KieGuard {
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+    private static final int CONSECUTIVE_FAILURES = 5;
+    private static final long BASE_COOLDOWN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_COOLDOWN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    enum Endpoint {
+        UPLOAD(16, 2, 64, TimeUnit.SECONDS.toMillis(30)),
+        CREATE(32, 4, 128, TimeUnit.SECONDS.toMillis(15)),
+        CHAT(16, 2, 64, 0);
+
+        final int initialLimit;
+        final int minLimit;
+        final int maxLimit;
+        final long slowMillis;
+
+        Endpoint(int initialLimit, int minLimit, int maxLimit, long slowMillis) {
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.slowMillis = slowMillis;
+        }
+    }
+
+    private final Map<Endpoint, Map<ModelFamily, Route>> routes = new EnumMap<>(Endpoint.class);
+
+    KieGuard() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            Map<ModelFamily, Route> byFamily = new EnumMap<>(ModelFamily.class);
+            for (ModelFamily family : ModelFamily.values()) {
+                byFamily.put(family, new Route(new Breaker(), new Limiter(endpoint)));
+            }
+            routes.put(endpoint, byFamily);
+        }
+    }
+
+    Ticket acquire(Endpoint endpoint, ModelFamily family) throws UnavailableException {
+        Route route = route(endpoint, family);
+        Breaker breaker = route.breaker;
+        long retryAfter = breaker.retryAfterMillis();
+        if (retryAfter > 0) {
+            throw new UnavailableException("Kie unavailable: circuit open for " + describe(endpoint, family), retryAfter);
+        }
+        Boolean probe = breaker.tryPass();
+        if (probe == null) {
+            throw new UnavailableException("Kie unavailable: circuit open for " + describe(endpoint, family), BASE_COOLDOWN_MILLIS);
+        }
+        Limiter limiter = route.limiter;
+        if (!limiter.tryAcquire()) {
+            breaker.abandon(probe);
+            throw new UnavailableException("Kie unavailable: concurrency limit reached for " + describe(endpoint, family), 0);
+        }
+        return new Ticket(breaker, limiter, probe);
+    }
+
+    long retryAfterMillis(Endpoint endpoint, ModelFamily family) {
+        return route(endpoint, family).breaker.retryAfterMillis();
+    }
+
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : Endpoint.values()) {
+            for (Map.Entry<ModelFamily, Route> entry : routes.get(endpoint).entrySet()) {
+                Route route = entry.getValue();
+                long retryAfter = route.breaker.retryAfterMillis(now);
+                if (retryAfter == 0 && !route.limiter.isActive(endpoint)) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(describe(endpoint, entry.getKey())).append(" ").append(route.limiter.describe());
+                if (retryAfter > 0) {
+                    sb.append(" отключено ещё ").append(TimeUnit.MILLISECONDS.toSeconds(retryAfter) + 1).append(" с");
+                }
+            }
+        }
+        return sb.length() == 0 ? "норма" : sb.toString();
+    }
+
+    private Route route(Endpoint endpoint, ModelFamily family) {
+        return routes.get(endpoint).get(family == null ? ModelFamily.OTHER : family);
+    }
+
+    private static String describe(Endpoint endpoint, ModelFamily family) {
+        String name = endpoint.name().toLowerCase(Locale.ROOT);
+        return family == null || family == ModelFamily.OTHER ? name : name + "/" + family.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Route {
+        final Breaker breaker;
+        final Limiter limiter;
+
+        Route(Breaker breaker, Limiter limiter) {
+            this.breaker = breaker;
+            this.limiter = limiter;
+        }
+    }
+
+    static final class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        UnavailableException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    static final class Ticket {
+        private final Breaker breaker;
+        private final Limiter limiter;
+        private final boolean probe;
+        private final long startedAt = System.currentTimeMillis();
+        private boolean done;
+
+        private Ticket(Breaker breaker, Limiter limiter, boolean probe) {
+            this.breaker = breaker;
+            this.limiter = limiter;
+            this.probe = probe;
+        }
+
+        void success() {
+            finish(true, false);
+        }
+
+        void failure() {
+            finish(false, false);
+        }
+
+        void cancelled() {
+            finish(true, true);
+        }
+
+        private synchronized void finish(boolean healthy, boolean cancelled) {
+            if (done) {
+                return;
+            }
+            done = true;
+            long elapsed = System.currentTimeMillis() - startedAt;
+            limiter.release(healthy, cancelled, elapsed);
+            if (cancelled) {
+                breaker.abandon(probe);
+            } else {
+                breaker.record(healthy, probe);
+            }
+        }
+    }
+
+    private static final class Breaker {
+        private final boolean[] outcomes = new boolean[WINDOW];
+        private int next;
+        private int calls;
+        private int failures;
+        private int consecutiveFailures;
+        private long openUntil;
+        private long cooldown = BASE_COOLDOWN_MILLIS;
+        private boolean open;
+        private boolean probing;
+
+        synchronized Boolean tryPass() {
+            if (!open) {
+                return false;
+            }
+            if (probing || System.currentTimeMillis() < openUntil) {
+                return null;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized long retryAfterMillis() {
+            return retryAfterMillis(System.currentTimeMillis());
+        }
+
+        synchronized long retryAfterMillis(long now) {
+            return open && now < openUntil ? openUntil - now : 0;
+        }
+
+        synchronized void abandon(boolean probe) {
+            if (probe) {
+                probing = false;
+            }
+        }
+
+        synchronized void record(boolean healthy, boolean probe) {
+            if (open) {
+                if (!probe) {
+                    return;
+                }
+                probing = false;
+                if (healthy) {
+                    reset();
+                } else {
+                    cooldown = Math.min(MAX_COOLDOWN_MILLIS, cooldown * 2);
+                    openUntil = System.currentTimeMillis() + cooldown;
+                }
+                return;
+            }
+            if (calls == WINDOW && outcomes[next]) {
+                failures--;
+            }
+            outcomes[next] = !healthy;
+            next = (next + 1) % WINDOW;
+            calls = Math.min(WINDOW, calls + 1);
+            if (healthy) {
+                consecutiveFailures = 0;
+                return;
+            }
+            failures++;
+            consecutiveFailures++;
+            if (consecutiveFailures >= CONSECUTIVE_FAILURES || (calls >= MIN_CALLS && failures * 2 >= calls)) {
+                open = true;
+                openUntil = System.currentTimeMillis() + cooldown;
+            }
+        }
+
+        private void reset() {
+            open = false;
+            cooldown = BASE_COOLDOWN_MILLIS;
+            calls = 0;
+            failures = 0;
+            consecutiveFailures = 0;
+            next = 0;
+            Arrays.fill(outcomes, false);
+        }
+    }
+
+    private static final class Limiter {
+        private final Endpoint endpoint;
+        private double limit;
+        private int inFlight;
+
+        Limiter(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            this.limit = endpoint.initialLimit;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void release(boolean healthy, boolean cancelled, long elapsedMillis) {
+            inFlight--;
+            if (cancelled) {
+                return;
+            }
+            boolean slow = endpoint.slowMillis > 0 && elapsedMillis > endpoint.slowMillis;
+            if (!healthy || slow) {
+                limit = Math.max(endpoint.minLimit, limit * 0.75);
+            } else if (inFlight + 1 >= limit / 2) {
+                limit = Math.min(endpoint.maxLimit, limit + 1.0 / limit);
+            }
+        }
+
+        synchronized boolean isActive(Endpoint endpoint) {
+            return inFlight > 0 || (int) limit != endpoint.initialLimit;
+        }
+
+        synchronized String describe() {
+            return inFlight + "/" + (int) limit;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.annexai;
+
+import java.util.Locale;
+
+public enum ModelFamily {
+    NANO,
+    FLUX,
+    IDEOGRAM,
+    GEMINI,
+    KLING,
+    SORA,
+    VEO,
+    OTHER;
+
+    public static ModelFamily of(String model) {
+        String normalized = model == null ? "" : model.toLowerCase(Locale.ROOT);
+        if (normalized.contains("nano-banana")) {
+            return NANO;
+        }
+        if (normalized.startsWith("flux")) {
+            return FLUX;
+        }
+        if (normalized.startsWith("ideogram")) {
+            return IDEOGRAM;
+        }
+        if (normalized.startsWith("gemini") || normalized.startsWith("google/gemini")) {
+            return GEMINI;
+        }
+        if (normalized.startsWith("kling")) {
+            return KLING;
+        }
+        if (normalized.startsWith("sora")) {
+            return SORA;
+        }
+        if (normalized.startsWith("veo")) {
+            return VEO;
+        }
+        return OTHER;
+    }
+
+    public static ModelFamily parse(String raw) {
+        try {
+            return ModelFamily.valueOf(raw.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public boolean isVideo() {
+        return this == KLING || this == SORA || this == VEO;
+    }
+}
@@ -0,0 +1,141 @@
+package com.annexai;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+public class PollingPolicy {
+    private static final long REFRESH_INTERVAL_MILLIS = 10 * 60 * 1000L;
+    private static final int MIN_SAMPLES = 5;
+    private static final double JITTER = 0.2;
+    private static final long SAFETY_NET_MIN_DELAY_MILLIS = 15_000;
+    private static final long SAFETY_NET_INTERVAL_MILLIS = 30_000;
+
+    private final Supplier<Map<String, List<Long>>> history;
+    private final boolean callbacksEnabled;
+    private volatile Map<String, Long> typicalByModel = Map.of();
+    private volatile Map<ModelFamily, Long> typicalByFamily = Map.of();
+    private volatile long refreshedAt;
+
+    public PollingPolicy(Supplier<Map<String, List<Long>>> history, boolean callbacksEnabled) {
+        this.history = history;
+        this.callbacksEnabled = callbacksEnabled;
+    }
+
+    public TaskCompletionScheduler.Cadence cadenceFor(String model) {
+        refreshIfStale();
+        ModelFamily family = ModelFamily.of(model);
+        Profile profile = Profile.of(family);
+        long typical = typicalMillis(model, family, profile);
+        if (callbacksEnabled) {
+            long safetyNetInitial = Math.max(SAFETY_NET_MIN_DELAY_MILLIS, typical * 2);
+            long safetyNetInterval = Math.max(SAFETY_NET_INTERVAL_MILLIS, profile.maxIntervalMillis);
+            return attempt -> jitter(attempt == 0 ? safetyNetInitial : safetyNetInterval);
+        }
+        long initial = Math.max(profile.minInitialDelayMillis, (long) (typical * profile.initialFraction));
+        return attempt -> {
+            if (attempt == 0) {
+                return jitter(initial);
+            }
+            double interval = profile.baseIntervalMillis * Math.pow(profile.backoff, attempt - 1);
+            return jitter((long) Math.min(interval, profile.maxIntervalMillis));
+        };
+    }
+
+    private long typicalMillis(String model, ModelFamily family, Profile profile) {
+        Long learned = model == null ? null : typicalByModel.get(model.toLowerCase(Locale.ROOT));
+        if (learned == null) {
+            learned = typicalByFamily.get(family);
+        }
+        return learned == null ? profile.defaultTypicalMillis : learned;
+    }
+
+    private void refreshIfStale() {
+        long now = System.currentTimeMillis();
+        if (now - refreshedAt < REFRESH_INTERVAL_MILLIS) {
+            return;
+        }
+        synchronized (this) {
+            if (now - refreshedAt < REFRESH_INTERVAL_MILLIS) {
+                return;
+            }
+            refreshedAt = now;
+            try {
+                Map<String, List<Long>> samples = history.get();
+                Map<String, Long> byModel = new HashMap<>();
+                Map<ModelFamily, List<Long>> familySamples = new HashMap<>();
+                for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+                    List<Long> durations = entry.getValue();
+                    familySamples.computeIfAbsent(ModelFamily.of(entry.getKey()), k -> new ArrayList<>()).addAll(durations);
+                    if (durations.size() >= MIN_SAMPLES) {
+                        byModel.put(entry.getKey().toLowerCase(Locale.ROOT), median(durations));
+                    }
+                }
+                Map<ModelFamily, Long> byFamily = new HashMap<>();
+                for (Map.Entry<ModelFamily, List<Long>> entry : familySamples.entrySet()) {
+                    if (entry.getValue().size() >= MIN_SAMPLES) {
+                        byFamily.put(entry.getKey(), median(entry.getValue()));
+                    }
+                }
+                typicalByModel = byModel;
+                typicalByFamily = byFamily;
+            } catch (Exception e) {
+                System.out.println("Polling policy refresh failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        sorted.sort(Long::compare);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static long jitter(long millis) {
+        double factor = 1.0 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+        return Math.max(250, (long) (millis * factor));
+    }
+
+    private enum Profile {
+        NANO(20_000, 0.5, 1_000, 1_000, 1.3, 4_000),
+        FLUX(25_000, 0.5, 1_000, 1_000, 1.3, 4_000),
+        IDEOGRAM(20_000, 0.5, 1_000, 1_000, 1.3, 4_000),
+        KLING(150_000, 0.7, 10_000, 5_000, 1.5, 30_000),
+        SORA(180_000, 0.7, 10_000, 5_000, 1.5, 30_000),
+        VEO(90_000, 0.7, 10_000, 5_000, 1.5, 30_000),
+        OTHER(30_000, 0.3, 3_000, 3_000, 1.2, 10_000);
+
+        final long defaultTypicalMillis;
+        final double initialFraction;
+        final long minInitialDelayMillis;
+        final long baseIntervalMillis;
+        final double backoff;
+        final long maxIntervalMillis;
+
+        Profile(long defaultTypicalMillis, double initialFraction, long minInitialDelayMillis,
+                long baseIntervalMillis, double backoff, long maxIntervalMillis) {
+            this.defaultTypicalMillis = defaultTypicalMillis;
+            this.initialFraction = initialFraction;
+            this.minInitialDelayMillis = minInitialDelayMillis;
+            this.baseIntervalMillis = baseIntervalMillis;
+            this.backoff = backoff;
+            this.maxIntervalMillis = maxIntervalMillis;
+        }
+
+        static Profile of(ModelFamily family) {
+            return switch (family) {
+                case NANO -> NANO;
+                case FLUX -> FLUX;
+                case IDEOGRAM -> IDEOGRAM;
+                case KLING -> KLING;
+                case SORA -> SORA;
+                case VEO -> VEO;
+                default -> OTHER;
+            };
+        }
+    }
+}
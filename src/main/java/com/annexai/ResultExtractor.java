@@ -0,0 +1,202 @@
+package com.annexai;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ResultExtractor {
+    private static final String[] URL_FIELDS = {
+            "resultUrls", "video_urls", "videoUrls", "videoUrl", "video_url", "image_urls", "images", "videos"
+    };
+    private static final int TEXT_SLOTS = 5;
+
+    private final List<List<String>> urls = new ArrayList<>(URL_FIELDS.length);
+    private final String[] texts = new String[TEXT_SLOTS];
+    private String imageUrl;
+    private String videoUrlValue;
+
+    private ResultExtractor() {
+        for (int i = 0; i < URL_FIELDS.length; i++) {
+            urls.add(null);
+        }
+    }
+
+    static Result extract(String resultJson) {
+        if (resultJson == null || resultJson.isBlank()) {
+            return Result.EMPTY;
+        }
+        try (JsonParser parser = Json.FACTORY.createParser(resultJson)) {
+            parser.nextToken();
+            return extract(parser);
+        } catch (IOException e) {
+            return Result.EMPTY;
+        }
+    }
+
+    static Result extract(JsonParser parser) throws IOException {
+        ResultExtractor extractor = new ResultExtractor();
+        Json.readObject(parser, extractor::readField);
+        return extractor.result();
+    }
+
+    private boolean readField(String field, JsonParser parser) throws IOException {
+        switch (field) {
+            case "text" -> texts[0] = textual(parser);
+            case "content" -> texts[1] = textual(parser);
+            case "result" -> {
+                if (parser.currentToken() == JsonToken.START_OBJECT) {
+                    Json.readObject(parser, (resultField, result) -> {
+                        if (!"text".equals(resultField)) {
+                            return false;
+                        }
+                        texts[2] = textual(result);
+                        return true;
+                    });
+                } else {
+                    texts[2] = textual(parser);
+                }
+            }
+            case "choices" -> Json.readArray(parser, (index, choice) -> index == 0 && readChoice(choice));
+            case "image_url" -> imageUrl = Json.text(parser);
+            case "videoUrl" -> urls.set(urlSlot(field), single(textual(parser)));
+            case "video_url" -> {
+                if (parser.currentToken() == JsonToken.VALUE_STRING) {
+                    urls.set(urlSlot(field), single(parser.getText()));
+                } else {
+                    videoUrlValue = Json.text(parser);
+                }
+            }
+            case "images" -> urls.set(urlSlot(field), readUrls(parser, "image_url"));
+            case "videos" -> urls.set(urlSlot(field), readUrls(parser, "video_url"));
+            default -> {
+                int slot = urlSlot(field);
+                if (slot < 0) {
+                    return false;
+                }
+                urls.set(slot, readUrls(parser, null));
+            }
+        }
+        return true;
+    }
+
+    private boolean readChoice(JsonParser choice) throws IOException {
+        Json.readObject(choice, (field, parser) -> {
+            if ("text".equals(field)) {
+                texts[4] = textual(parser);
+                return true;
+            }
+            if (!"message".equals(field)) {
+                return false;
+            }
+            Json.readObject(parser, (messageField, message) -> {
+                if (!"content".equals(messageField)) {
+                    return false;
+                }
+                texts[3] = textual(message);
+                return true;
+            });
+            return true;
+        });
+        return true;
+    }
+
+    private static List<String> readUrls(JsonParser parser, String objectField) throws IOException {
+        List<String> found = new ArrayList<>();
+        Json.readArray(parser, (index, element) -> {
+            if (objectField == null) {
+                addIfPresent(found, Json.text(element));
+            } else if (element.currentToken() == JsonToken.START_OBJECT) {
+                addIfPresent(found, urlOf(element, objectField));
+            } else {
+                addIfPresent(found, textual(element));
+            }
+            return true;
+        });
+        return found;
+    }
+
+    private static List<String> single(String url) {
+        List<String> found = new ArrayList<>(1);
+        addIfPresent(found, url);
+        return found;
+    }
+
+    private static String urlOf(JsonParser element, String objectField) throws IOException {
+        String[] candidates = new String[2];
+        Json.readObject(element, (field, parser) -> {
+            int slot = "url".equals(field) ? 0 : objectField.equals(field) ? 1 : -1;
+            if (slot < 0) {
+                return false;
+            }
+            candidates[slot] = Json.text(parser);
+            return true;
+        });
+        for (String candidate : candidates) {
+            if (candidate != null && !candidate.isBlank()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static String textual(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getText();
+    }
+
+    private static void addIfPresent(List<String> found, String url) {
+        if (url != null && !url.isBlank()) {
+            found.add(url);
+        }
+    }
+
+    private static int urlSlot(String field) {
+        for (int i = 0; i < URL_FIELDS.length; i++) {
+            if (URL_FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Result result() {
+        List<String> resultUrls = null;
+        for (List<String> candidate : urls) {
+            if (candidate != null && !candidate.isEmpty()) {
+                resultUrls = candidate;
+                break;
+            }
+        }
+        if (resultUrls == null) {
+            resultUrls = new ArrayList<>(2);
+            addIfPresent(resultUrls, imageUrl);
+            addIfPresent(resultUrls, videoUrlValue);
+        }
+        String resultText = "";
+        for (String candidate : texts) {
+            if (candidate != null) {
+                resultText = candidate;
+                break;
+            }
+        }
+        return new Result(resultUrls, resultText);
+    }
+
+    static final class Result {
+        static final Result EMPTY = new Result(List.of(), "");
+
+        final List<String> urls;
+        final String text;
+
+        Result(List<String> urls, String text) {
+            this.urls = urls;
+            this.text = text;
+        }
+    }
+}
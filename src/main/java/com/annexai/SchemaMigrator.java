@@ -0,0 +1,177 @@
+package com.annexai;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+final class SchemaMigrator {
+    private static final long CHUNK_PAUSE_MILLIS = 50;
+
+    private final SqliteConnectionPool pool;
+    private final List<Migration> steps = new ArrayList<>();
+    private final List<Migration> backgroundSteps = new ArrayList<>();
+
+    SchemaMigrator(SqliteConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    SchemaMigrator step(int version, String description, Step step) {
+        steps.add(new Migration(version, description, conn -> {
+            step.apply(conn);
+            return false;
+        }));
+        return this;
+    }
+
+    SchemaMigrator backgroundStep(int version, String description, Chunk chunk) {
+        backgroundSteps.add(new Migration(version, description, chunk));
+        return this;
+    }
+
+    void migrate() throws SQLException {
+        Set<Integer> applied = appliedVersions();
+        for (Migration migration : steps) {
+            if (applied.contains(migration.version)) {
+                continue;
+            }
+            long started = System.nanoTime();
+            try (Connection conn = pool.writer()) {
+                conn.setAutoCommit(false);
+                try {
+                    migration.chunk.apply(conn);
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                    record(conn, migration, millis);
+                    conn.commit();
+                    System.out.println("Migration " + migration.version + " (" + migration.description + ") applied in " + millis + " ms");
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
+    Thread migrateInBackground(Runnable onComplete) {
+        Thread thread = new Thread(() -> {
+            try {
+                Set<Integer> applied = appliedVersions();
+                for (Migration migration : backgroundSteps) {
+                    if (!applied.contains(migration.version)) {
+                        runInChunks(migration);
+                    }
+                }
+                onComplete.run();
+            } catch (InterruptedException e) {
+                System.out.println("Background migration stopped before completion");
+            } catch (Exception e) {
+                System.out.println("Background migration failed: " + e.getMessage());
+            }
+        }, "db-migrations");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void runInChunks(Migration migration) throws SQLException, InterruptedException {
+        long started = System.nanoTime();
+        int chunks = 0;
+        boolean more = true;
+        while (more) {
+            try (Connection conn = pool.writer()) {
+                conn.setAutoCommit(false);
+                try {
+                    more = migration.chunk.apply(conn);
+                    chunks++;
+                    if (!more) {
+                        record(conn, migration, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                    }
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+            if (more) {
+                TimeUnit.MILLISECONDS.sleep(CHUNK_PAUSE_MILLIS);
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        System.out.println("Migration " + migration.version + " (" + migration.description + ") applied in " + millis + " ms, " + chunks + " chunks");
+    }
+
+    private Set<Integer> appliedVersions() throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Connection conn = pool.writer(); Statement st = conn.createStatement()) {
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS schema_version (
+                    version INTEGER PRIMARY KEY,
+                    description TEXT NOT NULL,
+                    applied_at TEXT NOT NULL,
+                    duration_ms INTEGER NOT NULL
+                )
+            """);
+            try (ResultSet rs = st.executeQuery("SELECT version FROM schema_version")) {
+                while (rs.next()) {
+                    versions.add(rs.getInt("version"));
+                }
+            }
+        }
+        return versions;
+    }
+
+    private void record(Connection conn, Migration migration, long millis) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO schema_version (version, description, applied_at, duration_ms) VALUES (?, ?, ?, ?)")) {
+            ps.setInt(1, migration.version);
+            ps.setString(2, migration.description);
+            ps.setString(3, OffsetDateTime.now().toString());
+            ps.setLong(4, millis);
+            ps.executeUpdate();
+        }
+    }
+
+    static Set<String> columns(Connection conn, String table) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                columns.add(rs.getString("name"));
+            }
+        }
+        return columns;
+    }
+
+    @FunctionalInterface
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface Chunk {
+        boolean apply(Connection conn) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final Chunk chunk;
+
+        Migration(int version, String description, Chunk chunk) {
+            this.version = version;
+            this.description = description;
+            this.chunk = chunk;
+        }
+    }
+}
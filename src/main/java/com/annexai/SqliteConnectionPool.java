@@ -0,0 +1,256 @@
+package com.annexai;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class SqliteConnectionPool {
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final int readerCount;
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> opened = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private PooledConnection writer;
+
+    SqliteConnectionPool(String dbPath, int readerCount) {
+        this.url = "jdbc:sqlite:" + dbPath;
+        this.readerCount = Math.max(1, readerCount);
+        this.readers = new ArrayBlockingQueue<>(this.readerCount);
+    }
+
+    Connection writer() throws SQLException {
+        writeLock.lock();
+        try {
+            PooledConnection pooled;
+            synchronized (this) {
+                if (writer == null) {
+                    writer = open(false);
+                }
+                pooled = writer;
+            }
+            return lease(pooled, null);
+        } catch (SQLException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    Connection reader() throws SQLException {
+        PooledConnection pooled = readers.poll();
+        if (pooled == null) {
+            synchronized (this) {
+                if (opened.size() - (writer == null ? 0 : 1) < readerCount) {
+                    pooled = open(true);
+                }
+            }
+        }
+        if (pooled == null) {
+            try {
+                pooled = readers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a read connection", e);
+            }
+        }
+        return lease(pooled, readers);
+    }
+
+    boolean holdsWriteLock() {
+        return writeLock.isHeldByCurrentThread();
+    }
+
+    synchronized void close() {
+        for (PooledConnection pooled : opened) {
+            pooled.closeQuietly();
+        }
+        opened.clear();
+        readers.clear();
+        writer = null;
+    }
+
+    private PooledConnection open(boolean readOnly) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement st = conn.createStatement()) {
+            st.execute("PRAGMA busy_timeout=5000");
+            if (readOnly) {
+                st.execute("PRAGMA query_only=ON");
+            } else {
+                st.execute("PRAGMA foreign_keys=ON");
+                st.execute("PRAGMA journal_mode=WAL");
+                st.execute("PRAGMA synchronous=NORMAL");
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        PooledConnection pooled = new PooledConnection(conn);
+        opened.add(pooled);
+        return pooled;
+    }
+
+    private Connection lease(PooledConnection pooled, BlockingQueue<PooledConnection> returnTo) {
+        InvocationHandler handler = new LeaseHandler(pooled, returnTo, returnTo == null ? writeLock : null);
+        return (Connection) Proxy.newProxyInstance(
+                SqliteConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class PooledConnection {
+        final Connection physical;
+        final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() > STATEMENT_CACHE_SIZE && !eldest.getValue().inUse) {
+                    eldest.getValue().closeQuietly();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        synchronized PreparedStatement prepare(String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && cached.inUse) {
+                return physical.prepareStatement(sql);
+            }
+            if (cached == null) {
+                cached = new CachedStatement(physical.prepareStatement(sql));
+                statements.put(sql, cached);
+            }
+            cached.inUse = true;
+            return cached.proxy;
+        }
+
+        synchronized void release(CachedStatement cached) {
+            cached.inUse = false;
+        }
+
+        void closeQuietly() {
+            synchronized (this) {
+                for (CachedStatement cached : statements.values()) {
+                    cached.closeQuietly();
+                }
+                statements.clear();
+            }
+            try {
+                physical.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        private final class CachedStatement implements InvocationHandler {
+            final PreparedStatement physicalStatement;
+            final PreparedStatement proxy;
+            boolean inUse;
+
+            CachedStatement(PreparedStatement physicalStatement) {
+                this.physicalStatement = physicalStatement;
+                this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                        SqliteConnectionPool.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+            }
+
+            @Override
+            public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close" -> {
+                        try {
+                            physicalStatement.clearParameters();
+                        } finally {
+                            release(this);
+                        }
+                        return null;
+                    }
+                    case "isClosed" -> {
+                        return false;
+                    }
+                    default -> {
+                        return SqliteConnectionPool.invoke(physicalStatement, method, args);
+                    }
+                }
+            }
+
+            void closeQuietly() {
+                try {
+                    physicalStatement.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    private static final class LeaseHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final BlockingQueue<PooledConnection> returnTo;
+        private final ReentrantLock writeLock;
+        private boolean closed;
+
+        LeaseHandler(PooledConnection pooled, BlockingQueue<PooledConnection> returnTo, ReentrantLock writeLock) {
+            this.pooled = pooled;
+            this.returnTo = returnTo;
+            this.writeLock = writeLock;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    if (returnTo != null) {
+                        returnTo.offer(pooled);
+                    } else {
+                        release();
+                    }
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed;
+            }
+            if (closed) {
+                throw new SQLException("Connection lease already closed");
+            }
+            if ("prepareStatement".equals(name) && args != null && args.length == 1) {
+                return pooled.prepare((String) args[0]);
+            }
+            return SqliteConnectionPool.invoke(pooled.physical, method, args);
+        }
+
+        private void release() throws SQLException {
+            try {
+                if (writeLock.getHoldCount() == 1 && !pooled.physical.getAutoCommit()) {
+                    pooled.physical.rollback();
+                    pooled.physical.setAutoCommit(true);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
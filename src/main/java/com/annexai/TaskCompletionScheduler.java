@@ -0,0 +1,202 @@
+package com.annexai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskCompletionScheduler {
+    private static final long TICK_MILLIS = 500;
+    private static final long EARLY_SIGNAL_TTL_MILLIS = 60_000;
+    private static final long TICK_ERROR_LOG_INTERVAL_MILLIS = 60_000;
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService pollers;
+    private final Map<String, TrackedTask<?>> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Long> earlySignals = new ConcurrentHashMap<>();
+    private long tickErrorLoggedAt;
+    private int suppressedTickErrors;
+
+    public TaskCompletionScheduler(int pollThreads) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(namedThreads("kie-scheduler"));
+        this.pollers = Executors.newFixedThreadPool(Math.max(1, pollThreads), namedThreads("kie-poller"));
+        timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public <T> CompletableFuture<T> track(String taskId, Cadence cadence, long timeoutMillis, Probe<T> probe) {
+        return trackAsync(taskId, cadence, timeoutMillis, id -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return probe.poll(id);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pollers));
+    }
+
+    public <T> CompletableFuture<T> trackAsync(String taskId, Cadence cadence, long timeoutMillis, AsyncProbe<T> probe) {
+        long now = System.currentTimeMillis();
+        TrackedTask<T> task = new TrackedTask<>(taskId, probe, cadence, now + cadence.nextDelayMillis(0), now + timeoutMillis);
+        TrackedTask<?> previous = tasks.put(taskId, task);
+        if (previous != null) {
+            previous.future.cancel(false);
+        }
+        if (earlySignals.remove(taskId) != null) {
+            pollNow(taskId);
+        }
+        return task.future;
+    }
+
+    public void pollNow(String taskId) {
+        TrackedTask<?> task = tasks.get(taskId);
+        if (task == null) {
+            earlySignals.put(taskId, System.currentTimeMillis());
+            return;
+        }
+        if (task.polling.compareAndSet(false, true)) {
+            pollOne(task);
+        } else {
+            task.nextPollAt = 0;
+        }
+    }
+
+    public boolean isTracked(String taskId) {
+        return tasks.containsKey(taskId);
+    }
+
+    public int inFlight() {
+        return tasks.size();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        pollers.shutdownNow();
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            earlySignals.values().removeIf(at -> now - at > EARLY_SIGNAL_TTL_MILLIS);
+            List<TrackedTask<?>> due = new ArrayList<>();
+            for (TrackedTask<?> task : tasks.values()) {
+                if (task.future.isDone()) {
+                    tasks.remove(task.taskId, task);
+                    continue;
+                }
+                if (now >= task.deadline) {
+                    tasks.remove(task.taskId, task);
+                    task.future.completeExceptionally(new TimeoutException("wait_timeout"));
+                    CompletableFuture<?> poll = task.inFlight;
+                    if (poll != null) {
+                        poll.cancel(true);
+                    }
+                    continue;
+                }
+                if (now >= task.nextPollAt && task.polling.compareAndSet(false, true)) {
+                    due.add(task);
+                }
+            }
+            for (TrackedTask<?> task : due) {
+                pollOne(task);
+            }
+        } catch (Exception e) {
+            logTickError(e);
+        }
+    }
+
+    private void logTickError(Exception e) {
+        long now = System.currentTimeMillis();
+        if (now - tickErrorLoggedAt < TICK_ERROR_LOG_INTERVAL_MILLIS) {
+            suppressedTickErrors++;
+            return;
+        }
+        System.out.println("Kie task scheduler tick failed tracked=" + tasks.size()
+                + (suppressedTickErrors > 0 ? " suppressed=" + suppressedTickErrors : "") + ": " + e);
+        tickErrorLoggedAt = now;
+        suppressedTickErrors = 0;
+    }
+
+    private <T> void pollOne(TrackedTask<T> task) {
+        CompletableFuture<T> poll;
+        try {
+            poll = task.probe.poll(task.taskId);
+        } catch (RuntimeException e) {
+            poll = CompletableFuture.failedFuture(e);
+        }
+        task.inFlight = poll;
+        poll.whenComplete((result, error) -> {
+            try {
+                if (error != null) {
+                    tasks.remove(task.taskId, task);
+                    task.future.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error);
+                    return;
+                }
+                task.attempts++;
+                if (result != null) {
+                    tasks.remove(task.taskId, task);
+                    task.future.complete(result);
+                    return;
+                }
+                task.nextPollAt = System.currentTimeMillis() + task.cadence.nextDelayMillis(task.attempts);
+            } finally {
+                task.inFlight = null;
+                task.polling.set(false);
+            }
+        });
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @FunctionalInterface
+    public interface Probe<T> {
+        T poll(String taskId) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface AsyncProbe<T> {
+        CompletableFuture<T> poll(String taskId);
+    }
+
+    @FunctionalInterface
+    public interface Cadence {
+        long nextDelayMillis(int attempt);
+    }
+
+    private static class TrackedTask<T> {
+        final String taskId;
+        final AsyncProbe<T> probe;
+        final Cadence cadence;
+        final long deadline;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final AtomicBoolean polling = new AtomicBoolean();
+        volatile long nextPollAt;
+        volatile int attempts;
+        volatile CompletableFuture<?> inFlight;
+
+        TrackedTask(String taskId, AsyncProbe<T> probe, Cadence cadence, long nextPollAt, long deadline) {
+            this.taskId = taskId;
+            this.probe = probe;
+            this.cadence = cadence;
+            this.nextPollAt = nextPollAt;
+            this.deadline = deadline;
+        }
+    }
+}
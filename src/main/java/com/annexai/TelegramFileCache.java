@@ -0,0 +1,90 @@
+package com.annexai;
+
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class TelegramFileCache {
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(55);
+    private static final int MAX_ENTRIES = 10_000;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    String filePath(String fileId, Loader loader) throws TelegramApiException {
+        while (true) {
+            Entry entry = entries.get(fileId);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(fileId, entry);
+                continue;
+            }
+            if (entry != null) {
+                if (entry.path.isDone()) {
+                    hits.incrementAndGet();
+                } else {
+                    coalesced.incrementAndGet();
+                }
+                return await(entry);
+            }
+            Entry created = new Entry();
+            if (entries.putIfAbsent(fileId, created) != null) {
+                continue;
+            }
+            loads.incrementAndGet();
+            if (entries.size() > MAX_ENTRIES) {
+                evictExpired();
+            }
+            try {
+                created.path.complete(loader.load(fileId));
+            } catch (TelegramApiException | RuntimeException e) {
+                failures.incrementAndGet();
+                entries.remove(fileId, created);
+                created.path.completeExceptionally(e);
+                throw e;
+            }
+            return created.path.join();
+        }
+    }
+
+    private String await(Entry entry) throws TelegramApiException {
+        try {
+            return entry.path.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TelegramApiException telegram) {
+                throw telegram;
+            }
+            throw e;
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt < now);
+    }
+
+    String stats() {
+        long hitCount = hits.get();
+        long total = hitCount + coalesced.get() + loads.get();
+        long hitRate = total == 0 ? 0 : Math.round((hitCount + coalesced.get()) * 100.0 / total);
+        return entries.size() + " записей, попаданий " + hitRate + "% (" + hitCount + " готовых, " + coalesced.get()
+                + " ожиданий, " + loads.get() + " запросов GetFile, " + failures.get() + " ошибок)";
+    }
+
+    @FunctionalInterface
+    interface Loader {
+        String load(String fileId) throws TelegramApiException;
+    }
+
+    private static final class Entry {
+        final CompletableFuture<String> path = new CompletableFuture<>();
+        final long expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+    }
+}
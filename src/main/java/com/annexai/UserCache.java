@@ -0,0 +1,73 @@
+package com.annexai;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+final class UserCache {
+    private static final int STRIPES = 64;
+
+    private final int capacity;
+    private final Map<Long, Database.User> users;
+    private final long[] modifications = new long[STRIPES];
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    UserCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.users = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Database.User> eldest) {
+                if (size() > UserCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized Database.User get(long tgId) {
+        Database.User user = users.get(tgId);
+        if (user == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return user.copy();
+    }
+
+    synchronized long stamp(long tgId) {
+        return modifications[stripe(tgId)];
+    }
+
+    synchronized void putIfUnchanged(Database.User user, long stamp) {
+        if (user != null && stamp == modifications[stripe(user.tgId)]) {
+            users.put(user.tgId, user.copy());
+        }
+    }
+
+    synchronized void update(long tgId, Consumer<Database.User> change) {
+        modifications[stripe(tgId)]++;
+        Database.User user = users.get(tgId);
+        if (user != null) {
+            change.accept(user);
+        }
+    }
+
+    synchronized void invalidate(long tgId) {
+        modifications[stripe(tgId)]++;
+        users.remove(tgId);
+    }
+
+    private static int stripe(long tgId) {
+        return (int) Math.floorMod(tgId, (long) STRIPES);
+    }
+
+    synchronized String stats() {
+        long total = hits + misses;
+        long hitRate = total == 0 ? 0 : Math.round(hits * 100.0 / total);
+        return users.size() + "/" + capacity + ", попаданий " + hitRate + "% (" + hits + "/" + total + "), вытеснено " + evictions;
+    }
+}
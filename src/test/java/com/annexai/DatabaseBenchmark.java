@@ -0,0 +1,114 @@
+package com.annexai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final long USER_ID = 1001;
+    private static final List<String> UPDATE_QUERIES = List.of(
+            "SELECT * FROM users WHERE tg_id = ?",
+            "SELECT welcome_bonus_given FROM users WHERE tg_id = ?",
+            "SELECT state, data, updated_at FROM pending_actions WHERE user_id = ?",
+            "SELECT 1 FROM payments WHERE user_id = ? AND status = 'succeeded' LIMIT 1",
+            "SELECT * FROM users WHERE tg_id = ?"
+    );
+
+    private File file;
+    private Database db;
+    private SqliteConnectionPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("annexai-bench", ".db").toFile();
+        file.delete();
+        db = new Database(file.getPath());
+        db.init();
+        db.getOrCreateUser(USER_ID, "bench", "Bench", null, null);
+        db.flush();
+        pool = new SqliteConnectionPool(file.getPath(), 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+        db.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void connectionPerQuery(Blackhole bh) throws SQLException {
+        for (String sql : UPDATE_QUERIES) {
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath())) {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("PRAGMA foreign_keys=ON");
+                    st.execute("PRAGMA journal_mode=WAL");
+                    st.execute("PRAGMA synchronous=NORMAL");
+                    st.execute("PRAGMA busy_timeout=5000");
+                }
+                query(conn, sql, bh);
+            }
+        }
+    }
+
+    @Benchmark
+    public void pooledConnections(Blackhole bh) throws SQLException {
+        for (String sql : UPDATE_QUERIES) {
+            try (Connection conn = pool.reader()) {
+                query(conn, sql, bh);
+            }
+        }
+    }
+
+    @Benchmark
+    public void databaseUpdate(Blackhole bh) {
+        bh.consume(db.getOrCreateUser(USER_ID, "bench", "Bench", null, null));
+        bh.consume(db.ensureWelcomeBonus(USER_ID));
+        bh.consume(db.getPendingAction(USER_ID));
+        bh.consume(db.hasSuccessfulPayment(USER_ID));
+        bh.consume(db.getUser(USER_ID));
+    }
+
+    private static void query(Connection conn, String sql, Blackhole bh) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, USER_ID);
+            try (ResultSet rs = ps.executeQuery()) {
+                bh.consume(rs.next());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DatabaseBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,61 @@
+package com.annexai;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class DatabaseQueryPlanTest {
+    private static final int INDEX_MIGRATION = 3;
+
+    @TempDir
+    Path dir;
+
+    private String dbPath;
+    private Database db;
+
+    @BeforeEach
+    void migrate() throws Exception {
+        dbPath = dir.resolve("bot.db").toString();
+        db = new Database(dbPath);
+        db.init();
+        awaitMigration(INDEX_MIGRATION);
+    }
+
+    @AfterEach
+    void close() {
+        db.close();
+    }
+
+    @Test
+    void hotQueriesUseIndexes() throws SQLException {
+        assertEquals(List.of(), db.fullScans());
+    }
+
+    private void awaitMigration(int version) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+                 Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT 1 FROM schema_version WHERE version = " + version)) {
+                if (rs.next()) {
+                    return;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        fail("Migration " + version + " did not finish");
+    }
+}
@@ -0,0 +1,140 @@
+package com.annexai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class ImageCompressorBenchmark {
+    private static final long TELEGRAM_PHOTO_MAX_BYTES = 10 * 1024 * 1024;
+    private static final float[] LEGACY_QUALITIES = {0.92f, 0.85f, 0.75f, 0.65f, 0.55f, 0.45f, 0.35f};
+
+    @Param({"2K", "4K"})
+    public String size;
+
+    private Path original;
+    private ImageCompressor compressor;
+
+    @Setup
+    public void setUp() throws IOException {
+        int side = "4K".equals(size) ? 4096 : 2048;
+        original = Files.createTempFile("annexai-bench-" + size, ".png");
+        ImageIO.write(noisyImage(side, side), "png", original.toFile());
+        compressor = new ImageCompressor(TELEGRAM_PHOTO_MAX_BYTES, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(original);
+    }
+
+    @Benchmark
+    public long compressor() throws IOException {
+        return sizeAndDelete(compressor.compress(original));
+    }
+
+    @Benchmark
+    public long legacyScaleAndQualityLadder() throws IOException {
+        BufferedImage source = ImageIO.read(original.toFile());
+        BufferedImage base = copyToRgb(source, source.getWidth(), source.getHeight());
+        double scale = 1.0;
+        for (int scaleTry = 0; scaleTry < 4; scaleTry++) {
+            BufferedImage scaled = scale == 1.0
+                    ? base
+                    : copyToRgb(base, (int) (base.getWidth() * scale), (int) (base.getHeight() * scale));
+            for (float quality : LEGACY_QUALITIES) {
+                byte[] data = writeJpeg(scaled, quality);
+                if (data.length <= TELEGRAM_PHOTO_MAX_BYTES) {
+                    return data.length;
+                }
+            }
+            scale *= 0.85;
+        }
+        return -1;
+    }
+
+    private static long sizeAndDelete(Path compressed) throws IOException {
+        if (compressed == null) {
+            return -1;
+        }
+        long bytes = Files.size(compressed);
+        Files.delete(compressed);
+        return bytes;
+    }
+
+    private static byte[] writeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(buffer)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+
+    private static BufferedImage copyToRgb(BufferedImage source, int width, int height) {
+        BufferedImage rgb = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.drawImage(source, 0, 0, rgb.getWidth(), rgb.getHeight(), null);
+        g.dispose();
+        return rgb;
+    }
+
+    private static BufferedImage noisyImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(96)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(96)) & 0xff;
+                int b = ((x ^ y) + random.nextInt(96)) & 0xff;
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ImageCompressorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,77 @@
+package com.annexai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageCompressorTest {
+    private static final long MAX_BYTES = 1_000_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void compresses4kImageUnderLimitAndDecodesBelowTelegramSize() throws IOException {
+        Path original = writePng(4096, 2304);
+        Path compressed = new ImageCompressor(MAX_BYTES, 1).compress(original);
+        assertNotNull(compressed);
+        try {
+            assertTrue(Files.size(compressed) <= MAX_BYTES, "compressed to " + Files.size(compressed) + " bytes");
+            BufferedImage decoded = ImageIO.read(compressed.toFile());
+            assertTrue(Math.max(decoded.getWidth(), decoded.getHeight()) <= 2560,
+                    "decoded at " + decoded.getWidth() + "x" + decoded.getHeight());
+        } finally {
+            Files.deleteIfExists(compressed);
+        }
+    }
+
+    @Test
+    void keeps2kImageAtFullResolution() throws IOException {
+        Path original = writePng(2048, 1152);
+        Path compressed = new ImageCompressor(MAX_BYTES, 1).compress(original);
+        assertNotNull(compressed);
+        try {
+            assertTrue(Files.size(compressed) <= MAX_BYTES, "compressed to " + Files.size(compressed) + " bytes");
+            BufferedImage decoded = ImageIO.read(compressed.toFile());
+            assertTrue(decoded.getWidth() == 2048 && decoded.getHeight() == 1152,
+                    "decoded at " + decoded.getWidth() + "x" + decoded.getHeight());
+        } finally {
+            Files.deleteIfExists(compressed);
+        }
+    }
+
+    @Test
+    void returnsNullForUnreadableFile() throws IOException {
+        Path original = dir.resolve("broken.png");
+        Files.writeString(original, "not an image");
+        assertNull(new ImageCompressor(MAX_BYTES, 1).compress(original));
+    }
+
+    private Path writePng(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+                int b = ((x + y) * 255 / (width + height) + random.nextInt(32)) & 0xff;
+                pixels[y * width + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        Path file = dir.resolve(width + "x" + height + ".png");
+        ImageIO.write(image, "png", file.toFile());
+        return file;
+    }
+}
@@ -0,0 +1,93 @@
+package com.annexai;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KieCallbackTest {
+    private static final String SECRET = "callback-secret";
+    private static final String PATH = "/kie/callback";
+    private static final long SLOW_POLL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private StandInKie kie;
+    private TaskCompletionScheduler scheduler;
+    private KieCallbackServer callbacks;
+
+    @BeforeEach
+    void start() throws Exception {
+        kie = new StandInKie();
+        scheduler = new TaskCompletionScheduler(1);
+        callbacks = new KieCallbackServer(0, PATH, SECRET, scheduler::pollNow);
+        callbacks.start();
+    }
+
+    @AfterEach
+    void stop() {
+        callbacks.stop();
+        scheduler.shutdown();
+        kie.close();
+    }
+
+    @Test
+    void callbackCompletesTrackedTaskWithoutWaitingForPoll() throws Exception {
+        KieClient client = new KieClient(StandInKie.config(kie.baseUrl(), callbackUrl(), SECRET), new HttpClients());
+        String taskId = client.createNanoBananaTask("nano-banana-pro", "a cat", List.of(), "1:1", "png", "2K");
+        CompletableFuture<String> done = scheduler.track(taskId, attempt -> SLOW_POLL_MILLIS, 2 * SLOW_POLL_MILLIS,
+                id -> kie.isFinished(id) ? "done" : null);
+
+        assertEquals("done", done.get(5, TimeUnit.SECONDS));
+        assertEquals(200, kie.callbackStatus(taskId).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void timesOutHungPollAndCancelsIt() throws Exception {
+        CompletableFuture<String> hung = new CompletableFuture<>();
+        CompletableFuture<String> done = scheduler.trackAsync("hung-task", attempt -> 0, 600, id -> hung);
+
+        ExecutionException error = assertThrows(ExecutionException.class, () -> done.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+        assertThrows(CancellationException.class, () -> hung.get(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.isTracked("hung-task"));
+    }
+
+    @Test
+    void rejectsCallbackWithWrongToken() throws Exception {
+        KieClient client = new KieClient(StandInKie.config(kie.baseUrl(), callbackUrl(), "wrong-secret"), new HttpClients());
+        String taskId = client.createNanoBananaTask("nano-banana-pro", "a cat", List.of(), "1:1", "png", "2K");
+        CompletableFuture<String> done = scheduler.track(taskId, attempt -> SLOW_POLL_MILLIS, 2 * SLOW_POLL_MILLIS,
+                id -> kie.isFinished(id) ? "done" : null);
+
+        assertEquals(403, kie.callbackStatus(taskId).get(5, TimeUnit.SECONDS));
+        assertFalse(done.isDone());
+    }
+
+    @Test
+    void omitsCallbackUrlWhenCallbacksAreDisabled() throws Exception {
+        KieClient client = new KieClient(StandInKie.config(kie.baseUrl(), null, null), new HttpClients());
+        String taskId = client.createNanoBananaTask("nano-banana-pro", "a cat", List.of(), "1:1", "png", "2K");
+
+        assertFalse(kie.isFinished(taskId));
+        assertFalse(kie.requestBodies.get(0).contains("callBackUrl"));
+    }
+
+    @Test
+    void requiresSecretWhenCallbacksAreEnabled() {
+        assertThrows(IllegalStateException.class, () -> StandInKie.config(kie.baseUrl(), callbackUrl(), null));
+    }
+
+    private String callbackUrl() {
+        return "http://127.0.0.1:" + callbacks.port() + PATH;
+    }
+}
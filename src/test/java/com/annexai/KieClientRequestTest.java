@@ -0,0 +1,65 @@
+package com.annexai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class KieClientRequestTest {
+    private static final String PROMPT = "line one\nline two\r\n\t\"quoted\" back\\slash \u0001 кот 🐈";
+
+    private StandInKie kie;
+    private KieClient client;
+
+    @BeforeEach
+    void start() throws Exception {
+        kie = new StandInKie();
+        client = new KieClient(StandInKie.config(kie.baseUrl(), null, null), new HttpClients());
+    }
+
+    @AfterEach
+    void stop() {
+        kie.close();
+    }
+
+    @Test
+    void encodesPromptWithControlCharactersAsValidJson() throws Exception {
+        String taskId = client.createNanoBananaTask("nano-banana-pro", PROMPT, List.of("https://a/1.png", "https://a/\"2\".png"),
+                "16:9", "png", "2K");
+
+        JsonNode request = lastRequest();
+        assertEquals("task-1", taskId);
+        assertEquals("nano-banana-pro", request.path("model").asText());
+        assertFalse(request.has("callBackUrl"));
+        JsonNode input = request.path("input");
+        assertEquals(PROMPT, input.path("prompt").asText());
+        assertEquals(List.of("https://a/1.png", "https://a/\"2\".png"), strings(input.path("image_input")));
+        assertEquals("16:9", input.path("aspect_ratio").asText());
+        assertEquals("2K", input.path("resolution").asText());
+        assertEquals("png", input.path("output_format").asText());
+    }
+
+    @Test
+    void writesEditInputsAndEmptyStringsForMissingValues() throws Exception {
+        client.createNanoBananaTask("google/nano-banana-edit", null, null, "1:1", "jpeg", null);
+
+        JsonNode input = lastRequest().path("input");
+        assertEquals("", input.path("prompt").asText());
+        assertEquals(List.of(), strings(input.path("image_urls")));
+        assertEquals("1:1", input.path("image_size").asText());
+        assertEquals("jpeg", input.path("output_format").asText());
+    }
+
+    private JsonNode lastRequest() throws Exception {
+        return Json.MAPPER.readTree(kie.requestBodies.get(kie.requestBodies.size() - 1));
+    }
+
+    private static List<String> strings(JsonNode array) {
+        return Json.MAPPER.convertValue(array, Json.MAPPER.getTypeFactory().constructCollectionType(List.class, String.class));
+    }
+}
@@ -0,0 +1,137 @@
+package com.annexai;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KieCodecBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final String MODEL = "nano-banana-pro";
+    private static final String PROMPT = "A cozy reading nook by a rainy window, warm lamp light, "
+            + "film grain, shallow depth of field, muted palette, 35mm photo";
+    private static final List<String> IMAGES = List.of(
+            "https://tempfile.redpandaai.co/kieai/1/reference-a.png",
+            "https://tempfile.redpandaai.co/kieai/1/reference-b.png");
+    private static final byte[] RECORD_INFO = ("{\"code\":200,\"msg\":\"success\",\"data\":{"
+            + "\"taskId\":\"7c1f0e9a2b\",\"model\":\"nano-banana-pro\",\"state\":\"success\","
+            + "\"param\":\"{\\\"model\\\":\\\"nano-banana-pro\\\",\\\"input\\\":{\\\"prompt\\\":\\\"" + PROMPT + "\\\"}}\","
+            + "\"resultJson\":\"{\\\"resultUrls\\\":[\\\"https://tempfile.aiquickdraw.com/h/1.png\\\","
+            + "\\\"https://tempfile.aiquickdraw.com/h/2.png\\\"]}\","
+            + "\"failCode\":null,\"failMsg\":null,\"costTime\":41000,\"completeTime\":1760000000000,"
+            + "\"createTime\":1759999959000}}").getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public long legacyRequest() throws IOException {
+        StringBuilder images = new StringBuilder("[");
+        for (int i = 0; i < IMAGES.size(); i++) {
+            if (i > 0) {
+                images.append(",");
+            }
+            images.append("\"").append(escape(IMAGES.get(i))).append("\"");
+        }
+        images.append("]");
+        String payload = "{" +
+                "\"model\":\"" + escape(MODEL) + "\"," +
+                "\"input\":{"
+                + "\"prompt\":\"" + escape(PROMPT) + "\"," +
+                "\"image_input\":" + images + "," +
+                "\"aspect_ratio\":\"" + escape("16:9") + "\"," +
+                "\"resolution\":\"" + escape("2K") + "\"," +
+                "\"output_format\":\"" + escape("png") + "\"" +
+                "}" +
+                "}";
+        return write(RequestBody.create(payload, JSON));
+    }
+
+    @Benchmark
+    public long streamingRequest() throws IOException {
+        return write(Json.body(gen -> {
+            gen.writeStartObject();
+            gen.writeStringField("model", MODEL);
+            gen.writeObjectFieldStart("input");
+            gen.writeStringField("prompt", PROMPT);
+            Json.writeStrings(gen, "image_input", IMAGES);
+            gen.writeStringField("aspect_ratio", "16:9");
+            gen.writeStringField("resolution", "2K");
+            gen.writeStringField("output_format", "png");
+            gen.writeEndObject();
+            gen.writeEndObject();
+        }));
+    }
+
+    @Benchmark
+    public List<String> legacyResponse() throws IOException {
+        JsonNode data = Json.MAPPER.readTree(new String(RECORD_INFO, StandardCharsets.UTF_8)).path("data");
+        String state = data.path("state").asText();
+        List<String> urls = LegacyResultExtractor.urls(data.path("resultJson").asText());
+        return "success".equals(state) ? urls : List.of();
+    }
+
+    @Benchmark
+    public List<String> streamingResponse() throws IOException {
+        String[] state = {""};
+        List<List<String>> urls = new ArrayList<>(1);
+        Json.readObject(new ByteArrayInputStream(RECORD_INFO), (field, parser) -> {
+            if (!"data".equals(field)) {
+                return false;
+            }
+            Json.readObject(parser, (dataField, data) -> {
+                switch (dataField) {
+                    case "state" -> state[0] = Json.text(data);
+                    case "resultJson" -> urls.add(data.currentToken() == JsonToken.START_OBJECT
+                            ? ResultExtractor.extract(data).urls
+                            : ResultExtractor.extract(Json.text(data)).urls);
+                    default -> {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            return true;
+        });
+        return "success".equals(state[0]) && !urls.isEmpty() ? urls.get(0) : List.of();
+    }
+
+    private static long write(RequestBody body) throws IOException {
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(KieCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,178 @@
+package com.annexai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class LegacyResultExtractor {
+    static final List<String> CORPUS = List.of(
+            "{\"resultUrls\":[\"https://tempfile.aiquickdraw.com/h/1.png\",\"https://tempfile.aiquickdraw.com/h/2.png\"]}",
+            "{\"resultUrls\":[],\"video_urls\":[\"https://tempfile.aiquickdraw.com/v/1.mp4\"]}",
+            "{\"videoUrls\":[\"https://tempfile.aiquickdraw.com/v/2.mp4\"],\"resolution\":\"1080p\"}",
+            "{\"videoUrl\":\"https://tempfile.aiquickdraw.com/v/3.mp4\",\"image_url\":\"https://tempfile.aiquickdraw.com/p/3.jpg\"}",
+            "{\"image_url\":\"https://tempfile.aiquickdraw.com/p/4.jpg\",\"video_url\":\"https://tempfile.aiquickdraw.com/v/4.mp4\"}",
+            "{\"image_url\":\"https://tempfile.aiquickdraw.com/p/5.jpg\",\"video_url\":5}",
+            "{\"image_urls\":[\"https://tempfile.aiquickdraw.com/p/6.jpg\"],\"seed\":1234}",
+            "{\"images\":[{\"url\":\"https://i/1\"},{\"image_url\":\"https://i/2\"},\"https://i/3\",{\"video_url\":\"https://i/4\"}]}",
+            "{\"videos\":[{\"video_url\":\"https://v/1\"},{\"url\":\"https://v/2\"},{\"image_url\":\"https://v/3\"}]}",
+            "{\"resultUrls\":\"https://s/1\",\"video_urls\":\"https://s/2\",\"image_url\":\"https://s/3\"}",
+            "{\"deep\":{\"resultUrls\":[\"https://no\"]},\"video_url\":\"https://vv\"}",
+            "{\"text\":\"t\",\"content\":\"c\"}",
+            "{\"content\":[\"c\"],\"result\":{\"text\":\"rt\"}}",
+            "{\"result\":\"plain\"}",
+            "{\"choices\":[{\"text\":\"ct\",\"message\":{\"content\":\"m\"}},{\"text\":\"no\"}]}",
+            "{\"choices\":[{\"text\":\"ct\"}],\"usage\":{\"prompt_tokens\":12,\"completion_tokens\":40}}",
+            "{\"choices\":[],\"result\":5}",
+            "[\"https://a\"]",
+            "not json"
+    );
+
+    private LegacyResultExtractor() {
+    }
+
+    static List<String> urls(String resultJson) {
+        List<String> urls = new ArrayList<>();
+        if (resultJson == null || resultJson.isBlank()) {
+            return urls;
+        }
+        try {
+            JsonNode node = Json.MAPPER.readTree(resultJson);
+            JsonNode arr = node.path("resultUrls");
+            if (arr.isArray()) {
+                for (JsonNode n : arr) {
+                    urls.add(n.asText());
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            JsonNode videoUrls = node.path("video_urls");
+            if (videoUrls.isArray()) {
+                for (JsonNode n : videoUrls) {
+                    urls.add(n.asText());
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            JsonNode videoUrlsAlt = node.path("videoUrls");
+            if (videoUrlsAlt.isArray()) {
+                for (JsonNode n : videoUrlsAlt) {
+                    urls.add(n.asText());
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            JsonNode videoUrl = node.path("videoUrl");
+            if (videoUrl.isTextual() && !videoUrl.asText().isBlank()) {
+                urls.add(videoUrl.asText());
+                return urls;
+            }
+            JsonNode videoUrlAlt = node.path("video_url");
+            if (videoUrlAlt.isTextual() && !videoUrlAlt.asText().isBlank()) {
+                urls.add(videoUrlAlt.asText());
+                return urls;
+            }
+            JsonNode imageUrls = node.path("image_urls");
+            if (imageUrls.isArray()) {
+                for (JsonNode n : imageUrls) {
+                    urls.add(n.asText());
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            JsonNode images = node.path("images");
+            if (images.isArray()) {
+                for (JsonNode n : images) {
+                    if (n.isTextual()) {
+                        urls.add(n.asText());
+                    } else {
+                        String url = n.path("url").asText();
+                        if (url == null || url.isBlank()) {
+                            url = n.path("image_url").asText();
+                        }
+                        if (url != null && !url.isBlank()) {
+                            urls.add(url);
+                        }
+                    }
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            JsonNode videos = node.path("videos");
+            if (videos.isArray()) {
+                for (JsonNode n : videos) {
+                    if (n.isTextual()) {
+                        urls.add(n.asText());
+                    } else {
+                        String url = n.path("url").asText();
+                        if (url == null || url.isBlank()) {
+                            url = n.path("video_url").asText();
+                        }
+                        if (url != null && !url.isBlank()) {
+                            urls.add(url);
+                        }
+                    }
+                }
+                if (!urls.isEmpty()) {
+                    return urls;
+                }
+            }
+            String singleUrl = node.path("image_url").asText();
+            if (singleUrl != null && !singleUrl.isBlank()) {
+                urls.add(singleUrl);
+            }
+            String singleVideo = node.path("video_url").asText();
+            if (singleVideo != null && !singleVideo.isBlank()) {
+                urls.add(singleVideo);
+            }
+        } catch (Exception e) {
+            return urls;
+        }
+        return urls;
+    }
+
+    static String text(String resultJson) {
+        if (resultJson == null || resultJson.isBlank()) {
+            return "";
+        }
+        try {
+            JsonNode node = Json.MAPPER.readTree(resultJson);
+            JsonNode text = node.path("text");
+            if (text.isTextual()) {
+                return text.asText();
+            }
+            JsonNode content = node.path("content");
+            if (content.isTextual()) {
+                return content.asText();
+            }
+            JsonNode result = node.path("result");
+            if (result.isTextual()) {
+                return result.asText();
+            }
+            JsonNode resultText = result.path("text");
+            if (resultText.isTextual()) {
+                return resultText.asText();
+            }
+            JsonNode choices = node.path("choices");
+            if (choices.isArray() && choices.size() > 0) {
+                JsonNode first = choices.get(0);
+                JsonNode msg = first.path("message");
+                JsonNode msgContent = msg.path("content");
+                if (msgContent.isTextual()) {
+                    return msgContent.asText();
+                }
+                JsonNode choiceText = first.path("text");
+                if (choiceText.isTextual()) {
+                    return choiceText.asText();
+                }
+            }
+        } catch (Exception ignored) {
+        }
+        return "";
+    }
+}
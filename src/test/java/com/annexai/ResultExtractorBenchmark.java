@@ -0,0 +1,46 @@
+package com.annexai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultExtractorBenchmark {
+    @Benchmark
+    public void legacyCascade(Blackhole bh) {
+        for (String json : LegacyResultExtractor.CORPUS) {
+            bh.consume(LegacyResultExtractor.urls(json));
+            bh.consume(LegacyResultExtractor.text(json));
+        }
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole bh) {
+        for (String json : LegacyResultExtractor.CORPUS) {
+            ResultExtractor.Result result = ResultExtractor.extract(json);
+            bh.consume(result.urls);
+            bh.consume(result.text);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ResultExtractorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,117 @@
+package com.annexai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ResultExtractorTest {
+    @Test
+    void readsResultUrls() {
+        assertExtracted("{\"resultUrls\":[\"https://a\",\"https://b\"]}", List.of("https://a", "https://b"), "");
+    }
+
+    @Test
+    void fallsBackToVideoUrlsWhenResultUrlsIsEmpty() {
+        assertExtracted("{\"resultUrls\":[],\"video_urls\":[\"https://v\"]}", List.of("https://v"), "");
+    }
+
+    @Test
+    void prefersResultUrlsWhateverTheFieldOrder() {
+        assertExtracted("{\"images\":[{\"url\":\"https://i1\"}],\"resultUrls\":[\"https://r\"]}", List.of("https://r"), "");
+    }
+
+    @Test
+    void readsUrlsFromObjectsAndStringsInOneArray() {
+        assertExtracted("{\"images\":[{\"url\":\"https://i1\"},{\"image_url\":\"https://i2\"},\"https://i3\"]}",
+                List.of("https://i1", "https://i2", "https://i3"), "");
+    }
+
+    @Test
+    void readsVideoObjects() {
+        assertExtracted("{\"videos\":[{\"video_url\":\"https://v1\"}]}", List.of("https://v1"), "");
+    }
+
+    @Test
+    void prefersVideoUrlOverImageUrl() {
+        assertExtracted("{\"image_url\":\"https://x\",\"videoUrl\":\"https://y\"}", List.of("https://y"), "");
+    }
+
+    @Test
+    void prefersStringVideoUrlOverImageUrl() {
+        assertExtracted("{\"image_url\":\"https://x\",\"video_url\":\"https://y\"}", List.of("https://y"), "");
+    }
+
+    @Test
+    void returnsImageUrlAndNonStringVideoUrlTogether() {
+        assertExtracted("{\"image_url\":\"https://x\",\"video_url\":42}", List.of("https://x", "42"), "");
+    }
+
+    @Test
+    void ignoresScalarValuesInArrayFields() {
+        assertExtracted("{\"resultUrls\":\"https://r\",\"video_urls\":\"https://v\",\"image_url\":\"https://x\"}",
+                List.of("https://x"), "");
+    }
+
+    @Test
+    void matchesLegacyCascadeOnCorpus() {
+        for (String json : LegacyResultExtractor.CORPUS) {
+            assertExtracted(json, LegacyResultExtractor.urls(json), LegacyResultExtractor.text(json));
+        }
+    }
+
+    @Test
+    void readsSingleImageUrl() {
+        assertExtracted("{\"image_url\":\"https://x\"}", List.of("https://x"), "");
+    }
+
+    @Test
+    void skipsBlankAndNonStringUrls() {
+        assertExtracted("{\"resultUrls\":[\"\",null,{}],\"image_urls\":[\"https://ok\"]}", List.of("https://ok"), "");
+    }
+
+    @Test
+    void ignoresNestedUrlFields() {
+        assertExtracted("{\"deep\":{\"resultUrls\":[\"https://no\"]},\"video_url\":\"https://vv\"}", List.of("https://vv"), "");
+    }
+
+    @Test
+    void prefersTextOverContent() {
+        assertExtracted("{\"content\":\"c\",\"text\":\"t\"}", List.of(), "t");
+    }
+
+    @Test
+    void prefersResultTextOverChoices() {
+        assertExtracted("{\"choices\":[{\"message\":{\"content\":\"m\"}}],\"result\":{\"text\":\"rt\"}}", List.of(), "rt");
+    }
+
+    @Test
+    void readsPlainResultString() {
+        assertExtracted("{\"result\":\"plain\"}", List.of(), "plain");
+    }
+
+    @Test
+    void prefersMessageContentOverChoiceTextInFirstChoice() {
+        assertExtracted("{\"choices\":[{\"text\":\"ct\",\"message\":{\"content\":\"m\"}},{\"text\":\"no\"}]}", List.of(), "m");
+    }
+
+    @Test
+    void readsChoiceTextWithoutMessage() {
+        assertExtracted("{\"choices\":[{\"text\":\"ct\"}]}", List.of(), "ct");
+    }
+
+    @Test
+    void returnsEmptyForMissingOrInvalidJson() {
+        assertExtracted(null, List.of(), "");
+        assertExtracted("", List.of(), "");
+        assertExtracted("not json", List.of(), "");
+        assertExtracted("[\"https://a\"]", List.of(), "");
+    }
+
+    private static void assertExtracted(String json, List<String> urls, String text) {
+        ResultExtractor.Result result = ResultExtractor.extract(json);
+        assertEquals(urls, result.urls, json);
+        assertEquals(text, result.text, json);
+    }
+}
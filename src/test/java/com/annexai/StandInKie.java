@@ -0,0 +1,104 @@
+package com.annexai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class StandInKie implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final HttpClient callbackClient = HttpClient.newHttpClient();
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private final Set<String> finished = ConcurrentHashMap.newKeySet();
+    private final Map<String, CompletableFuture<Integer>> callbackStatuses = new ConcurrentHashMap<>();
+    final List<String> requestBodies = new CopyOnWriteArrayList<>();
+
+    StandInKie() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v1/jobs/createTask", this::createTask);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    boolean isFinished(String taskId) {
+        return finished.contains(taskId);
+    }
+
+    CompletableFuture<Integer> callbackStatus(String taskId) {
+        return callbackStatuses.computeIfAbsent(taskId, id -> new CompletableFuture<>());
+    }
+
+    static Config config(String apiBase, String callbackUrl, String callbackSecret) {
+        Map<String, String> env = new HashMap<>();
+        env.put("BOT_TOKEN", "test-token");
+        env.put("BOT_USERNAME", "test_bot");
+        env.put("PAYMENT_PROVIDER_TOKEN", "test-payments");
+        env.put("KIE_API_KEY", "test-key");
+        env.put("KIE_API_BASE", apiBase);
+        env.put("KIE_UPLOAD_BASE", apiBase);
+        if (callbackUrl != null) {
+            env.put("KIE_CALLBACK_URL", callbackUrl);
+        }
+        if (callbackSecret != null) {
+            env.put("KIE_CALLBACK_SECRET", callbackSecret);
+        }
+        return Config.load(env::get);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void createTask(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        requestBodies.add(new String(body, StandardCharsets.UTF_8));
+        JsonNode request = Json.MAPPER.readTree(body);
+        String taskId = "task-" + taskIds.incrementAndGet();
+        respond(exchange, "{\"code\":200,\"msg\":\"success\",\"data\":{\"taskId\":\"" + taskId + "\"}}");
+        String callbackUrl = request.path("callBackUrl").asText("");
+        if (!callbackUrl.isEmpty()) {
+            finished.add(taskId);
+            HttpRequest callback = HttpRequest.newBuilder(URI.create(callbackUrl))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"code\":200,\"msg\":\"success\",\"data\":{\"taskId\":\"" + taskId + "\",\"state\":\"success\"}}"))
+                    .build();
+            callbackClient.sendAsync(callback, HttpResponse.BodyHandlers.discarding())
+                    .thenAccept(response -> callbackStatus(taskId).complete(response.statusCode()));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}